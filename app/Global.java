@@ -0,0 +1,36 @@
+import play.Application;
+import models.VoteStatus;
+import models.utils.MailOutboxDispatcher;
+import models.utils.MailQueue;
+import models.utils.NotificationDigest;
+import models.utils.NotificationSubscriptions;
+import models.utils.ReferenceCache;
+import models.utils.VoteJournal;
+import play.GlobalSettings;
+import service.TagIndex;
+import service.TalkSearchIndex;
+import service.VoteTally;
+
+public class Global extends GlobalSettings {
+
+    @Override
+    public void onStart(Application app) {
+        ReferenceCache.start();
+        VoteStatus.load();
+        VoteTally.rebuild();
+        TagIndex.rebuild();
+        TalkSearchIndex.rebuild();
+        NotificationSubscriptions.rebuild();
+        MailOutboxDispatcher.start();
+        NotificationDigest.start();
+        VoteJournal.start();
+    }
+
+    @Override
+    public void onStop(Application app) {
+        VoteJournal.stop();
+        NotificationDigest.stop();
+        MailOutboxDispatcher.stop();
+        MailQueue.stopInstance();
+    }
+}
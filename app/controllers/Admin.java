@@ -2,26 +2,38 @@ package controllers;
 
 import static play.libs.Json.toJson;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
 
 import models.*;
+import models.utils.EntityVersions;
+import models.utils.IdentityResolver;
+import models.utils.NotificationSubscriptions;
+import models.utils.ReferenceCache;
+import models.utils.VoteJournal;
 
 import org.codehaus.jackson.JsonNode;
 
+import com.avaje.ebean.Ebean;
+
+import service.TalkSearchIndex;
+import service.VoteTally;
+
 import play.mvc.Controller;
 import play.mvc.Result;
-import securesocial.core.Identity;
 import securesocial.core.java.SecureSocial;
 
 @SecureSocial.SecuredAction(ajaxCall = true)
 public class Admin extends Controller {
 
     public static User getLoggedUser() {
-        Identity socialUser = (Identity) ctx().args.get(SecureSocial.USER_KEY);
-        User user = User.findByExternalId(socialUser.id().id(), socialUser.id().providerId());
-        return user;
+        return IdentityResolver.getLoggedUser();
     }
 
     public static Result deleteCompte(Long id) {
@@ -35,24 +47,45 @@ public class Admin extends Controller {
         if (userToDelete.admin) {
             return badRequest();
         }
-        // has talks ?
-        List<Talk> talks = Talk.findBySpeaker(userToDelete);
-        for (Talk talk : talks) {
-            talk.statusTalk = StatusTalk.REJETE;
-            talk.speaker = null;
-            talk.save();
+        // Les votes en attente de l'utilisateur doivent être en base pour être supprimés,
+        // et aucun autre vote ne doit être mis en attente pendant la suppression
+        VoteJournal.hold(userToDelete.id);
+        Set<Long> talkIds;
+        Lock voteLock = VoteTally.voteLock();
+        try {
+            talkIds = Talk.findIdsBySpeaker(userToDelete.id);
+            voteLock.lock();
+            try {
+                Map<Long, Integer> notes = Vote.findNotesByUser(userToDelete.id);
+                Ebean.beginTransaction();
+                try {
+                    User.deleteWithDependencies(userToDelete.id);
+                    VoteStats.rebuildForTalks(notes.keySet());
+                    Ebean.commitTransaction();
+                } finally {
+                    Ebean.endTransaction();
+                }
+                for (Map.Entry<Long, Integer> note : notes.entrySet()) {
+                    VoteTally.unrecord(note.getKey(), note.getValue());
+                }
+            } finally {
+                voteLock.unlock();
+            }
+        } finally {
+            VoteJournal.release(userToDelete.id);
         }
 
-        //has commentaires ?
-        List<Comment> comments = Comment.findByAuthor(userToDelete);
-        for (Comment comment : comments) {
-
-            comment.author = null;
-            comment.save();
+        IdentityResolver.invalidate(userToDelete.id);
+        NotificationSubscriptions.removeUser(userToDelete.id);
+        if (!talkIds.isEmpty()) {
+            // Les talks rejetés n'ont plus de speaker : on les réindexe
+            for (Talk talk : Talk.find.fetch("tags").where().in("id", talkIds).findList()) {
+                NotificationSubscriptions.setSpeaker(talk.id, null);
+                TalkSearchIndex.index(talk);
+            }
+            EntityVersions.bump(EntityVersions.TALK);
         }
-
-
-        userToDelete.delete();
+        EntityVersions.bump(EntityVersions.USER);
 
         return ok();
     }
@@ -63,25 +96,58 @@ public class Admin extends Controller {
             return forbidden();
         }
         JsonNode node = request().body().asJson();
+        // Emails comparés sans tenir compte de la casse, indexés en minuscules
+        Map<String, Boolean> adminByEmail = new HashMap<String, Boolean>();
+        Map<String, String> submittedEmails = new HashMap<String, String>();
         Iterator<Map.Entry<String, JsonNode>> iteratorMails = node.getFields();
         while (iteratorMails.hasNext()) {
             Map.Entry<String, JsonNode> entry = iteratorMails.next();
-            String mail = entry.getKey();
-            boolean admin = entry.getValue().asBoolean();
-            User user = User.findByEmail(mail);
-            if (admin) {
-                if (user != null && !user.admin) {
-                    user.admin = true;
-                    user.save();
-                }
-            } else {
-                if (user != null && user.admin) {
-                    user.admin = false;
-                    user.save();
-                }
+            String email = entry.getKey().toLowerCase();
+            adminByEmail.put(email, entry.getValue().asBoolean());
+            submittedEmails.put(email, entry.getKey());
+        }
+
+        // Un seul aller-retour pour retrouver tous les utilisateurs
+        List<Long> toPromote = new ArrayList<Long>();
+        List<Long> toDemote = new ArrayList<Long>();
+        for (User user : User.findRolesByEmails(adminByEmail.keySet())) {
+            String email = user.email.toLowerCase();
+            Boolean admin = adminByEmail.get(email);
+            submittedEmails.remove(email);
+            if (admin && !user.admin) {
+                toPromote.add(user.id);
+            } else if (!admin && user.admin) {
+                toDemote.add(user.id);
             }
         }
-        return ok();
+
+        // Tout ou rien : deux updates dans la même transaction
+        Ebean.beginTransaction();
+        try {
+            User.updateAdmin(toPromote, true);
+            User.updateAdmin(toDemote, false);
+            Ebean.commitTransaction();
+        } finally {
+            Ebean.endTransaction();
+        }
+
+        for (Long userId : toPromote) {
+            IdentityResolver.invalidate(userId);
+            NotificationSubscriptions.setAdmin(userId, true);
+        }
+        for (Long userId : toDemote) {
+            IdentityResolver.invalidate(userId);
+            NotificationSubscriptions.setAdmin(userId, false);
+        }
+        if (!toPromote.isEmpty() || !toDemote.isEmpty()) {
+            EntityVersions.bump(EntityVersions.USER);
+        }
+
+        Map<String, Object> report = new HashMap<String, Object>();
+        report.put("promoted", toPromote.size());
+        report.put("demoted", toDemote.size());
+        report.put("unknownEmails", new TreeSet<String>(submittedEmails.values()));
+        return ok(toJson(report));
     }
 
     public static class ResultVote {
@@ -107,6 +173,27 @@ public class Admin extends Controller {
             return forbidden();
         }
         VoteStatus.changeVoteStatus(VoteStatusEnum.valueOf(newStatus));
+        EntityVersions.bump(EntityVersions.TALK);
         return ok();
     }
+
+    public static Result rebuildVoteStats() {
+        User user = getLoggedUser();
+        if (!user.admin) {
+            return forbidden();
+        }
+        VoteTally.rebuildFromVotes();
+        return ok();
+    }
+
+    /**
+     * Compteurs des caches des tables de référence (succès, échecs, invalidations).
+     */
+    public static Result cacheStats() {
+        User user = getLoggedUser();
+        if (!user.admin) {
+            return forbidden();
+        }
+        return ok(toJson(ReferenceCache.allStats()));
+    }
 }
\ No newline at end of file
@@ -2,30 +2,31 @@ package controllers;
 
 import static play.libs.Json.toJson;
 
-import java.util.ArrayList;
+import java.util.List;
 
 import models.Creneau;
-import models.Talk;
 import models.User;
+import models.utils.EntityVersions;
+import models.utils.IdentityResolver;
+import models.utils.JsonArrayChunks;
 import models.utils.TransformValidationErrors;
 import play.data.Form;
 import play.i18n.Messages;
 import play.mvc.Controller;
 import play.mvc.Result;
-import securesocial.core.Identity;
 import securesocial.core.java.SecureSocial;
 
+import com.avaje.ebean.Ebean;
+
 @SecureSocial.SecuredAction(ajaxCall = true)
 public class CreneauRestController extends Controller {
 
     private static User getLoggedUser() {
-        Identity socialUser = (Identity) ctx().args.get(SecureSocial.USER_KEY);
-        User user = User.findByExternalId(socialUser.id().id(), socialUser.id().providerId());
-        return user;
+        return IdentityResolver.getLoggedUser();
     }
 
     public static Result get(Long idCreneau) {
-        Creneau creneau = Creneau.find.byId(idCreneau);
+        Creneau creneau = Creneau.cache.get(idCreneau);
         if (creneau == null) {
             return noContent();
         }
@@ -33,7 +34,17 @@ public class CreneauRestController extends Controller {
     }
 
     public static Result all() {
-        return ok(toJson(Creneau.find.all()));
+        String etag = EntityVersions.etag(null, EntityVersions.CRENEAU);
+        if (EntityVersions.notModified(etag)) {
+            return status(NOT_MODIFIED);
+        }
+        response().setContentType("application/json; charset=utf-8");
+        return ok(new JsonArrayChunks<Creneau>() {
+            @Override
+            protected List<Creneau> nextBatch(Creneau last) {
+                return Creneau.findPage(last == null ? null : last.getId(), BATCH_SIZE);
+            }
+        }.prepare());
     }
 
     public static Result save() {
@@ -70,6 +81,8 @@ public class CreneauRestController extends Controller {
             dbCreneau.setDescription(formCreneau.getDescription());
             dbCreneau.update();
         }
+        Creneau.cache.invalidate();
+        EntityVersions.bump(EntityVersions.CRENEAU);
         // HTTP 204 en cas de succès (NO CONTENT)
         return noContent();
     }
@@ -85,11 +98,16 @@ public class CreneauRestController extends Controller {
 
         Creneau creneau = Creneau.find.byId(idCreneau);
         if (creneau != null) {
-            for (Talk talk : new ArrayList<Talk>(creneau.getTalks())) {
-                creneau.getTalks().remove(talk);
+            Ebean.beginTransaction();
+            try {
+                Creneau.deleteWithDependencies(idCreneau);
+                Ebean.commitTransaction();
+            } finally {
+                Ebean.endTransaction();
             }
-            creneau.saveManyToManyAssociations("talks");
-            creneau.delete();
+            Creneau.cache.invalidate();
+            EntityVersions.bump(EntityVersions.CRENEAU);
+            EntityVersions.bump(EntityVersions.TALK);
         }
         // HTTP 204 en cas de succès (NO CONTENT)
         return noContent();
@@ -4,25 +4,24 @@ import static play.libs.Json.toJson;
 import models.DynamicField;
 import models.DynamicFieldValue;
 import models.User;
+import models.utils.EntityVersions;
+import models.utils.IdentityResolver;
 import models.utils.TransformValidationErrors;
 import play.data.Form;
 import play.i18n.Messages;
 import play.mvc.Controller;
 import play.mvc.Result;
-import securesocial.core.Identity;
 import securesocial.core.java.SecureSocial;
 
 @SecureSocial.SecuredAction(ajaxCall = true)
 public class DynamicFieldRestController extends Controller {
 
     private static User getLoggedUser() {
-        Identity socialUser = (Identity) ctx().args.get(SecureSocial.USER_KEY);
-        User user = User.findByExternalId(socialUser.id().id(), socialUser.id().providerId());
-        return user;
+        return IdentityResolver.getLoggedUser();
     }
 
     public static Result get(Long idDynamicField) {
-        DynamicField dynamicField = DynamicField.find.byId(idDynamicField);
+        DynamicField dynamicField = DynamicField.cache.get(idDynamicField);
         if (dynamicField == null) {
             return noContent();
         }
@@ -30,7 +29,11 @@ public class DynamicFieldRestController extends Controller {
     }
 
     public static Result all() {
-        return ok(toJson(DynamicField.find.all()));
+        String etag = EntityVersions.etag(null, EntityVersions.DYNAMIC_FIELD);
+        if (EntityVersions.notModified(etag)) {
+            return status(NOT_MODIFIED);
+        }
+        return ok(toJson(DynamicField.cache.all()));
     }
 
     public static Result save() {
@@ -63,6 +66,8 @@ public class DynamicFieldRestController extends Controller {
             dbDynamicField.setName(formDynamicField.getName());
             dbDynamicField.update();
         }
+        DynamicField.cache.invalidate();
+        EntityVersions.bump(EntityVersions.DYNAMIC_FIELD);
         // HTTP 204 en cas de succès (NO CONTENT)
         return noContent();
     }
@@ -79,6 +84,8 @@ public class DynamicFieldRestController extends Controller {
                 value.delete();
             }
             dynamicField.delete();
+            DynamicField.cache.invalidate();
+            EntityVersions.bump(EntityVersions.DYNAMIC_FIELD);
         }
         // HTTP 204 en cas de succès (NO CONTENT)
         return noContent();
@@ -1,11 +1,18 @@
 package controllers;
 
 import static play.libs.Json.toJson;
+
+import java.util.List;
+
 import models.User;
+import models.utils.EntityVersions;
+import models.utils.IdentityResolver;
+import models.utils.JsonArrayChunks;
 import play.mvc.Controller;
 import play.mvc.Result;
 import securesocial.core.Identity;
 import securesocial.core.java.SecureSocial;
+import service.UserListAssembler;
 
 /**
  * Controlleur pour gérer les requêtes Ajax liées aux utilisateurs
@@ -16,9 +23,7 @@ import securesocial.core.java.SecureSocial;
 public class UserRestController extends Controller {
 
     private static User getLoggedUser() {
-        Identity socialUser = (Identity) ctx().args.get(SecureSocial.USER_KEY);
-        User user = User.findByExternalId(socialUser.id().id(), socialUser.id().providerId());
-        return user;
+        return IdentityResolver.getLoggedUser();
     }
 
     /**
@@ -32,7 +37,14 @@ public class UserRestController extends Controller {
         if (!user.admin) {
             return forbidden();
         }
-        return ok(toJson(User.findAll()));
+        response().setContentType("application/json; charset=utf-8");
+        final UserListAssembler assembler = new UserListAssembler();
+        return ok(new JsonArrayChunks<User>() {
+            @Override
+            protected List<User> nextBatch(User last) {
+                return assembler.assemble(User.findPage(last == null ? null : last.id, BATCH_SIZE));
+            }
+        }.prepare());
     }
 
     /**
@@ -57,6 +69,12 @@ public class UserRestController extends Controller {
      * @return Objet Utilisateur en JSON
      */
     public static Result getUserLogged() {
+        Identity socialUser = (Identity) ctx().args.get(SecureSocial.USER_KEY);
+        String etag = EntityVersions.etag(socialUser.id().providerId() + ":" + socialUser.id().id(),
+                EntityVersions.USER, EntityVersions.DYNAMIC_FIELD);
+        if (EntityVersions.notModified(etag)) {
+            return status(NOT_MODIFIED);
+        }
         User user = getLoggedUser();
         return ok(toJson(user));
     }
@@ -9,27 +9,28 @@ import models.DynamicFieldJson;
 import models.DynamicFieldValue;
 import models.Lien;
 import models.User;
+import models.utils.EntityVersions;
+import models.utils.IdentityResolver;
 import models.utils.TransformValidationErrors;
 
 import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.node.ArrayNode;
 
+import com.avaje.ebean.Ebean;
+
 import play.Logger;
 import play.data.Form;
 import play.i18n.Messages;
 import play.mvc.Controller;
 import static play.mvc.Controller.request;
 import play.mvc.Result;
-import securesocial.core.Identity;
 import securesocial.core.java.SecureSocial;
 
 @SecureSocial.SecuredAction(ajaxCall=true)
 public class Account extends Controller {
 
     public static User getLoggedUser() {
-        Identity socialUser = (Identity) ctx().args.get(SecureSocial.USER_KEY);
-        User user = User.findByExternalId(socialUser.id().id(), socialUser.id().providerId());
-        return user;
+        return IdentityResolver.getLoggedUser();
     }
 
     // Utilisé par le json.
@@ -45,6 +46,8 @@ public class Account extends Controller {
     	
     	Lien lien = Lien.find.byId(idLink);
     	lien.delete();
+    	IdentityResolver.invalidate(getLoggedUser().id);
+    	EntityVersions.bump(EntityVersions.USER);
     	
     	return ok();
     }
@@ -119,12 +122,14 @@ public class Account extends Controller {
                 if (fieldJson.getValue() != null && fieldJson.getValue().length() > 0) {
                     DynamicFieldValue newValue = new DynamicFieldValue();
                     newValue.setValue(fieldJson.getValue());
-                    newValue.setDynamicField(DynamicField.find.byId(fieldJson.getIdField()));
+                    DynamicField field = DynamicField.cache.get(fieldJson.getIdField());
+                    newValue.setDynamicField(field == null ? null : Ebean.getReference(DynamicField.class, field.getId()));
                     newValue.setUser(user);
                     newValue.save();
                 }
             }
         }
+        EntityVersions.bump(EntityVersions.USER);
 
         return ok();
     }
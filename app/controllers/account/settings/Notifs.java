@@ -1,21 +1,19 @@
 package controllers.account.settings;
 
 import models.User;
+import models.utils.IdentityResolver;
 
 import org.codehaus.jackson.JsonNode;
 
 import play.mvc.Controller;
 import play.mvc.Result;
-import securesocial.core.Identity;
 import securesocial.core.java.SecureSocial;
 
 @SecureSocial.SecuredAction(ajaxCall=true)
 public class Notifs extends Controller {
 
     public static User getLoggedUser() {
-        Identity socialUser = (Identity) ctx().args.get(SecureSocial.USER_KEY);
-        User user = User.findByExternalId(socialUser.id().id(), socialUser.id().providerId());
-        return user;
+        return IdentityResolver.getLoggedUser();
     }
 
     public static Result save() {
@@ -26,6 +24,9 @@ public class Notifs extends Controller {
         user.setNotifOnMyTalk(userJson.get("notifOnMyTalk").asBoolean());
         user.setNotifAdminOnAllTalk(userJson.get("notifAdminOnAllTalk").asBoolean());
         user.setNotifAdminOnTalkWithComment(userJson.get("notifAdminOnTalkWithComment").asBoolean());
+        if (userJson.get("notifDigest") != null) {
+            user.setNotifDigest(userJson.get("notifDigest").asBoolean());
+        }
         user.save();
         return ok();
     }
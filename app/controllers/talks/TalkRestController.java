@@ -4,13 +4,14 @@ import static play.libs.Json.toJson;
 
 import java.net.MalformedURLException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.locks.Lock;
 
 import models.Comment;
 import models.Creneau;
@@ -21,26 +22,39 @@ import models.User;
 import models.Vote;
 import models.VoteStatus;
 import models.VoteStatusEnum;
+import models.VoteStats;
+import models.utils.AfterCommit;
+import models.utils.EntityVersions;
+import models.utils.IdentityResolver;
+import models.utils.JsonArrayChunks;
+import models.utils.NotificationSubscriptions;
+import models.utils.SqlUtils;
 import models.utils.TransformValidationErrors;
+import models.utils.VoteJournal;
 
 import org.codehaus.jackson.JsonNode;
 
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.SqlRow;
+
 import play.Logger;
 import play.data.Form;
 import play.i18n.Messages;
 import play.mvc.Controller;
 import play.mvc.Result;
 import static play.mvc.Results.unauthorized;
-import securesocial.core.Identity;
 import securesocial.core.java.SecureSocial;
+import service.TagIndex;
+import service.TalkListAssembler;
+import service.TalkRanking;
+import service.TalkSearchIndex;
+import service.VoteTally;
 
 @SecureSocial.SecuredAction(ajaxCall = true)
 public class TalkRestController extends Controller {
 
     public static User getLoggedUser() {
-        Identity socialUser = (Identity) ctx().args.get(SecureSocial.USER_KEY);
-        User user = User.findByExternalId(socialUser.id().id(), socialUser.id().providerId());
-        return user;
+        return IdentityResolver.getLoggedUser();
     }
 
     public static Result getById(Long idTalk) {
@@ -58,26 +72,14 @@ public class TalkRestController extends Controller {
         User user = getLoggedUser();
 
         List<Talk> talks = Talk.findBySpeaker(user);
-
-        for (Talk talk : talks) {
-            if (user.admin) {
-                talk.vote = Vote.findVoteByUserAndTalk(user, talk);
-                if (VoteStatus.getVoteStatus() == VoteStatusEnum.CLOSED) {
-                    talk.moyenne = Vote.calculMoyenne(talk);
-                }
-            }
-
-            talk.fiteredComments(user);
-        }
+        new TalkListAssembler(user, true).assemble(talks);
         return ok(toJson(talks));
     }
 
     public static Result getTalks(Long userId) {
         User user = User.find.byId(userId);
         List<Talk> talks = Talk.findBySpeaker(user);
-        for (Talk talk : talks) {
-            talk.fiteredComments(user);
-        }
+        new TalkListAssembler(user, false).assemble(talks);
         return ok(toJson(talks));
     }
 
@@ -85,26 +87,140 @@ public class TalkRestController extends Controller {
         StatusTalk statusTalk = StatusTalk.fromCode(status);
         User user = User.find.byId(userId);
         List<Talk> talks = Talk.findBySpeakerAndStatus(user, statusTalk);
-        for (Talk talk : talks) {
-            talk.fiteredComments(user);
-        }
+        new TalkListAssembler(user, false).assemble(talks);
         return ok(toJson(talks));
     }
 
     public static Result all() {
+        final User user = getLoggedUser();
+        if (!user.admin) {
+            return forbidden();
+        }
+        String etag = EntityVersions.etag(user.id.toString(), EntityVersions.TALK, EntityVersions.CRENEAU, EntityVersions.USER);
+        if (EntityVersions.notModified(etag)) {
+            return status(NOT_MODIFIED);
+        }
+        response().setContentType("application/json; charset=utf-8");
+        return ok(new JsonArrayChunks<Talk>() {
+            @Override
+            protected List<Talk> nextBatch(Talk last) {
+                List<Talk> talks = Talk.findPage(last == null ? null : last.id, BATCH_SIZE, null, null, null, null, null);
+                return new TalkListAssembler(user, true).assemble(talks);
+            }
+        }.prepare());
+    }
+
+    private static final int PAGE_SIZE_DEFAULT = 50;
+    private static final int PAGE_SIZE_MAX = 200;
+
+    /**
+     * Liste paginée des talks pour les admins, avec pagination par curseur sur l'id du talk.
+     * <p/>
+     * Paramètres (tous optionnels) : after (id du dernier talk lu), size, status (code A/W/R),
+     * tag, creneau, speaker, notVoted (true pour ne garder que les talks non encore votés).
+     *
+     * @return les talks de la page et le curseur de la page suivante (null s'il n'y en a plus)
+     */
+    public static Result page() {
         User user = getLoggedUser();
         if (!user.admin) {
             return forbidden();
         }
-        List<Talk> talks = Talk.find.all();
-        for (Talk talk : talks) {
-            talk.vote = Vote.findVoteByUserAndTalk(user, talk);
-            if (VoteStatus.getVoteStatus() == VoteStatusEnum.CLOSED) {
-                talk.moyenne = Vote.calculMoyenne(talk);
+
+        int size = PAGE_SIZE_DEFAULT;
+        String sizeParam = queryParam("size");
+        String status = queryParam("status");
+        String creneau = queryParam("creneau");
+        String speaker = queryParam("speaker");
+        String after = queryParam("after");
+        StatusTalk statusTalk = null;
+        Long afterId = null;
+        Long creneauId = null;
+        Long speakerId = null;
+        try {
+            if (sizeParam != null) {
+                size = Math.max(1, Math.min(PAGE_SIZE_MAX, Integer.parseInt(sizeParam)));
+            }
+            if (after != null) {
+                afterId = Long.valueOf(after);
             }
-            talk.fiteredComments(user);
+            if (creneau != null) {
+                creneauId = Long.valueOf(creneau);
+            }
+            if (speaker != null) {
+                speakerId = Long.valueOf(speaker);
+            }
+        } catch (NumberFormatException nfe) {
+            return badRequest();
         }
-        return ok(toJson(talks));
+        if (status != null) {
+            statusTalk = StatusTalk.fromCode(status);
+            if (statusTalk == null) {
+                return badRequest();
+            }
+        }
+        User notVotedBy = "true".equals(queryParam("notVoted")) ? user : null;
+
+        List<Talk> talks = Talk.findPage(afterId, size + 1, statusTalk, queryParam("tag"), creneauId, speakerId, notVotedBy);
+        Long next = null;
+        if (talks.size() > size) {
+            talks = new ArrayList<Talk>(talks.subList(0, size));
+            next = talks.get(size - 1).id;
+        }
+        new TalkListAssembler(user, true).assemble(talks);
+
+        Map<String, Object> result = new HashMap<String, Object>();
+        result.put("talks", talks);
+        result.put("next", next);
+        return ok(toJson(result));
+    }
+
+    private static final int RANKING_SIZE_DEFAULT = 20;
+    private static final int RANKING_SIZE_MAX = 500;
+
+    /**
+     * Classement des talks une fois le vote clos.
+     * <p/>
+     * Paramètres (tous optionnels) : k (nombre de talks, au plus 500), creneau, tag.
+     */
+    public static Result ranking() {
+        User user = getLoggedUser();
+        if (!user.admin) {
+            return forbidden();
+        }
+        if (VoteStatus.getVoteStatus() != VoteStatusEnum.CLOSED) {
+            return unauthorized();
+        }
+
+        int k = RANKING_SIZE_DEFAULT;
+        Set<Long> candidateIds = null;
+        try {
+            if (queryParam("k") != null) {
+                k = Math.max(1, Math.min(RANKING_SIZE_MAX, Integer.parseInt(queryParam("k"))));
+            }
+            if (queryParam("creneau") != null) {
+                candidateIds = Talk.findIdsByCreneau(Long.valueOf(queryParam("creneau")));
+            }
+        } catch (NumberFormatException nfe) {
+            return badRequest();
+        }
+        if (queryParam("tag") != null) {
+            Set<Long> tagIds = Talk.findIdsByTag(queryParam("tag"));
+            if (candidateIds == null) {
+                candidateIds = tagIds;
+            } else {
+                candidateIds.retainAll(tagIds);
+            }
+        }
+        return ok(toJson(TalkRanking.top(k, candidateIds)));
+    }
+
+    private static String queryParam(String name) {
+        String[] values = request().queryString().get(name);
+        if (values == null || values.length == 0 || values[0].length() == 0) {
+            return null;
+        }
+        return values[0];
     }
 
     public static Result save() {
@@ -134,6 +250,7 @@ public class TalkRestController extends Controller {
             formTalk.saveManyToManyAssociations("creneaux");
             formTalk.update();
             updateTags(talkForm.data().get("tagsname"), formTalk);
+            TalkSearchIndex.index(formTalk);
         } else {
             // Mise à jour d'un talk
             Talk dbTalk = Talk.find.byId(formTalk.id);
@@ -154,9 +271,11 @@ public class TalkRestController extends Controller {
             dbTalk.save();
             updateCreneaux(formTalk, dbTalk);
             updateTags(talkForm.data().get("tagsname"), dbTalk);
+            TalkSearchIndex.index(dbTalk);
         }
 
 
+        EntityVersions.bump(EntityVersions.TALK);
         // HTTP 204 en cas de succès (NO CONTENT)
         return noContent();
     }
@@ -179,7 +298,7 @@ public class TalkRestController extends Controller {
         // ajout des creneaux ajoutés dans la liste
         for (Long idCreneau : creneauxInForm) {
             if (!creneauxInDb.contains(idCreneau)) {
-                dbTalk.getCreneaux().add(Creneau.find.byId(idCreneau));
+                dbTalk.getCreneaux().add(Ebean.getReference(Creneau.class, idCreneau));
             }
         }
         dbTalk.saveManyToManyAssociations("creneaux");
@@ -195,31 +314,65 @@ public class TalkRestController extends Controller {
         if (tags == null || tags.length() == 0) {
             return;
         }
-        List<String> tagsList = Arrays.asList(tags.split(","));
-
-        // suppression qui ne sont plus présent dans la nouvelle liste
-        List<Tag> tagtmp = new ArrayList<Tag>(dbTalk.getTags());
-        for (Tag tag : tagtmp) {
-            if (!tagsList.contains(tag.nom)) {
-                dbTalk.getTags().remove(tag);
+        Set<String> noms = new LinkedHashSet<String>();
+        for (String tag : tags.split(",")) {
+            String nom = tag.trim().toUpperCase();
+            if (nom.length() > 0) {
+                noms.add(nom);
             }
         }
 
-        // ajout des tags ajoutés dans la liste
-        for (String tag : tagsList) {
-            if (!dbTalk.getTagsName().contains(tag)) {
-                Tag dbTag = Tag.findByTagName(tag.toUpperCase());
-                if (dbTag == null) {
-                    dbTag = new Tag();
-                    dbTag.nom = tag.toUpperCase();
-                    dbTag.save();
+        Map<String, Tag> tagsByName;
+        Map<Long, String> tagNamesInDb = new HashMap<Long, String>();
+        Set<Long> tagIdsToAdd = new HashSet<Long>();
+        Set<Long> tagIdsToRemove = new HashSet<Long>();
+        Ebean.beginTransaction();
+        try {
+            // Résolution de tous les tags demandés en une requête, création des manquants en un lot
+            tagsByName = Tag.findOrCreateByTagNames(noms);
+            for (Tag tag : tagsByName.values()) {
+                tagIdsToAdd.add(tag.id);
+            }
+
+            // Diff avec les associations actuelles du talk
+            String sql = "select tt.tag_id, tg.nom from tag_talk tt join tag tg on tg.id = tt.tag_id where tt.talk_id = :talkId";
+            for (SqlRow row : Ebean.createSqlQuery(sql).setParameter("talkId", dbTalk.id).findList()) {
+                tagNamesInDb.put(row.getLong("tag_id"), row.getString("nom"));
+            }
+            tagIdsToRemove.addAll(tagNamesInDb.keySet());
+            tagIdsToRemove.removeAll(tagIdsToAdd);
+            tagIdsToAdd.removeAll(tagNamesInDb.keySet());
+
+            if (!tagIdsToRemove.isEmpty()) {
+                Ebean.createSqlUpdate("delete from tag_talk where talk_id = :talkId and tag_id in ("
+                        + SqlUtils.joinIds(tagIdsToRemove) + ")").setParameter("talkId", dbTalk.id).execute();
+            }
+            if (!tagIdsToAdd.isEmpty()) {
+                StringBuilder insert = new StringBuilder("insert into tag_talk (tag_id, talk_id) values ");
+                boolean first = true;
+                for (Long tagId : tagIdsToAdd) {
+                    insert.append(first ? "" : ", ").append('(').append(tagId).append(", ").append(dbTalk.id).append(')');
+                    first = false;
                 }
-                Logger.debug("tags: = " + dbTag.id);
-                dbTalk.getTags().add(dbTag);
+                Ebean.createSqlUpdate(insert.toString()).execute();
             }
+            Ebean.commitTransaction();
+        } finally {
+            Ebean.endTransaction();
         }
-        dbTalk.saveManyToManyAssociations("tags");
-        dbTalk.update();
+
+        for (Long tagId : tagIdsToRemove) {
+            TagIndex.addUsage(tagNamesInDb.get(tagId), -1);
+        }
+        List<Tag> talkTags = new ArrayList<Tag>();
+        for (String nom : noms) {
+            Tag tag = tagsByName.get(nom);
+            if (tagIdsToAdd.contains(tag.id)) {
+                TagIndex.addUsage(tag.nom, 1);
+            }
+            talkTags.add(tag);
+        }
+        dbTalk.tags = talkTags;
     }
 
     public static Result addTag(Long idTalk, String tags) {
@@ -234,12 +387,82 @@ public class TalkRestController extends Controller {
             Logger.debug("addTags: = " + tags + " init tags " + dbTalk.getTagsName());
             updateTags(tags, dbTalk);
             Logger.debug("fin addTags: = " + dbTalk.getTagsName() + " size : " + dbTalk.getTags().size());
+            TalkSearchIndex.index(dbTalk);
+            EntityVersions.bump(EntityVersions.TALK);
             return ok();
         } else {
             return notFound();
         }
     }
 
+    private static final int TAG_SUGGESTIONS_DEFAULT = 10;
+
+    /**
+     * Autocomplétion des tags : tags existants commençant par le paramètre q, les plus utilisés en premier.
+     */
+    public static Result suggestTags() {
+        String prefix = queryParam("q");
+        if (prefix == null) {
+            return ok(toJson(Collections.emptyList()));
+        }
+        int max = TAG_SUGGESTIONS_DEFAULT;
+        try {
+            if (queryParam("max") != null) {
+                max = Math.max(1, Integer.parseInt(queryParam("max")));
+            }
+        } catch (NumberFormatException nfe) {
+            return badRequest();
+        }
+        return ok(toJson(TagIndex.suggest(prefix, max)));
+    }
+
+    private static final int SEARCH_SIZE_DEFAULT = 20;
+
+    /**
+     * Recherche plein texte dans les talks (titre, description, tags, speaker).
+     * <p/>
+     * Paramètres : q (texte recherché), max (optionnel).
+     */
+    public static Result search() {
+        User user = getLoggedUser();
+        if (!user.admin) {
+            return forbidden();
+        }
+        String query = queryParam("q");
+        if (query == null) {
+            return ok(toJson(Collections.emptyList()));
+        }
+        int max = SEARCH_SIZE_DEFAULT;
+        try {
+            if (queryParam("max") != null) {
+                max = Math.max(1, Integer.parseInt(queryParam("max")));
+            }
+        } catch (NumberFormatException nfe) {
+            return badRequest();
+        }
+
+        List<TalkSearchIndex.Hit> hits = TalkSearchIndex.search(query, max);
+        if (hits.isEmpty()) {
+            return ok(toJson(Collections.emptyList()));
+        }
+        Set<Long> ids = new HashSet<Long>();
+        for (TalkSearchIndex.Hit hit : hits) {
+            ids.add(hit.id);
+        }
+        Map<Long, Talk> talksById = new HashMap<Long, Talk>();
+        for (Talk talk : Talk.withSpeaker().where().in("id", ids).findList()) {
+            talksById.put(talk.id, talk);
+        }
+        List<Talk> talks = new ArrayList<Talk>();
+        for (TalkSearchIndex.Hit hit : hits) {
+            Talk talk = talksById.get(hit.id);
+            if (talk != null) {
+                talks.add(talk);
+            }
+        }
+        return ok(toJson(new TalkListAssembler(user, false).assemble(talks)));
+    }
+
     public static Result delete(Long idTalk) {
         if (VoteStatus.getVoteStatus() != VoteStatusEnum.NOT_BEGIN) {
             return badRequest(toJson(TransformValidationErrors.transform(Messages.get("error.vote.begin"))));
@@ -254,23 +477,21 @@ public class TalkRestController extends Controller {
             return unauthorized();
         }
 
-        
-        for (Comment comment : talk.getComments()) {
-            comment.delete();
+        List<Tag> tags = new ArrayList<Tag>(talk.getTags());
+        Ebean.beginTransaction();
+        try {
+            Talk.deleteWithDependencies(idTalk);
+            Ebean.commitTransaction();
+        } finally {
+            Ebean.endTransaction();
         }
-
-        List<Tag> tagtmp = new ArrayList<Tag>(talk.getTags());
-        for (Tag tag : tagtmp) {
-            talk.getTags().remove(tag);
+        for (Tag tag : tags) {
+            TagIndex.addUsage(tag.nom, -1);
         }
-        talk.saveManyToManyAssociations("tags");
-
-        List<Creneau> creneauxTmp = new ArrayList<Creneau>(talk.getCreneaux());
-        for (Creneau creneau : creneauxTmp) {
-            talk.getCreneaux().remove(creneau);
-        }
-        talk.saveManyToManyAssociations("creneaux");
-        talk.delete();
+        VoteTally.remove(idTalk);
+        TalkSearchIndex.remove(idTalk);
+        NotificationSubscriptions.removeTalk(idTalk);
+        EntityVersions.bump(EntityVersions.TALK);
         // HTTP 204 en cas de succès (NO CONTENT)
         return noContent();
     }
@@ -303,9 +524,17 @@ public class TalkRestController extends Controller {
             comment.comment = commentForm;
             comment.privateComment = privateComment;
             comment.talk = talk;
-            comment.save();
-            comment.sendMail();
+            // Le mail de notification est enregistré dans la même transaction que le commentaire
+            Ebean.beginTransaction();
+            try {
+                comment.save();
+                comment.sendMail();
+                AfterCommit.commit();
+            } finally {
+                AfterCommit.end();
+            }
         }
+        EntityVersions.bump(EntityVersions.TALK);
         return ok();
     }
 
@@ -323,6 +552,7 @@ public class TalkRestController extends Controller {
         question.clos = true;
         question.save();
 
+        EntityVersions.bump(EntityVersions.TALK);
         return ok();
 
     }
@@ -346,6 +576,7 @@ public class TalkRestController extends Controller {
 
         question.delete();
 
+        EntityVersions.bump(EntityVersions.TALK);
         return ok();
     }
 
@@ -386,13 +617,20 @@ public class TalkRestController extends Controller {
             }
 
             comment.question = question;
-            comment.save();
+            Ebean.beginTransaction();
+            try {
+                comment.save();
 
-            question.reponses.add(comment);
-            question.save();
+                question.reponses.add(comment);
+                question.save();
 
-            comment.sendMail();
+                comment.sendMail();
+                AfterCommit.commit();
+            } finally {
+                AfterCommit.end();
+            }
         }
+        EntityVersions.bump(EntityVersions.TALK);
         return ok();
     }
 
@@ -418,10 +656,16 @@ public class TalkRestController extends Controller {
 
         if (commentForm.length() > 0 && commentForm.length() <= 140) {
             question.comment = commentForm;
-            question.save();
-
-            question.sendMail();
+            Ebean.beginTransaction();
+            try {
+                question.save();
+                question.sendMail();
+                AfterCommit.commit();
+            } finally {
+                AfterCommit.end();
+            }
         }
+        EntityVersions.bump(EntityVersions.TALK);
         return ok();
     }
 
@@ -438,12 +682,19 @@ public class TalkRestController extends Controller {
         StatusTalk newStatus = StatusTalk.fromValue(node.get("status").asText());
         if (talk.statusTalk != newStatus) {
             talk.statusTalk = newStatus;
-            talk.save();
-            if (talk.statusTalk != null) {
-                talk.statusTalk.sendMail(talk, talk.speaker.email);
+            Ebean.beginTransaction();
+            try {
+                talk.save();
+                if (talk.statusTalk != null) {
+                    talk.statusTalk.sendMail(talk, talk.speaker.email);
+                }
+                AfterCommit.commit();
+            } finally {
+                AfterCommit.end();
             }
         }
 
+        EntityVersions.bump(EntityVersions.TALK);
         return ok();
     }
 
@@ -463,14 +714,57 @@ public class TalkRestController extends Controller {
             return badRequest();
         }
 
-        Vote vote = Vote.findVoteByUserAndTalk(user, talk);
-        if (vote == null) {
-            vote = new Vote();
-            vote.setUser(user);
-            vote.setTalk(talk);
+        Lock voteLock = VoteTally.voteLock();
+        voteLock.lock();
+        try {
+            Integer oldNote = null;
+            if (VoteJournal.isEnabled()) {
+                oldNote = VoteJournal.record(user, talk, note);
+            } else {
+                Ebean.beginTransaction();
+                try {
+                    Vote vote = Vote.findVoteByUserAndTalk(user, talk);
+                    if (vote == null) {
+                        vote = new Vote();
+                        vote.setUser(user);
+                        vote.setTalk(talk);
+                    } else {
+                        oldNote = vote.getNote();
+                    }
+                    vote.setNote(note);
+                    vote.save();
+                    VoteStats.recordVote(talk.id, oldNote, note);
+                    Ebean.commitTransaction();
+                } finally {
+                    Ebean.endTransaction();
+                }
+            }
+            VoteTally.record(talk.id, oldNote, note);
+        } finally {
+            voteLock.unlock();
         }
-        vote.setNote(note);
-        vote.save();
+        EntityVersions.bump(EntityVersions.TALK);
         return ok();
     }
+
+    public static Result getVoteStats(Long idTalk) {
+        User user = getLoggedUser();
+        if (!user.admin) {
+            return forbidden();
+        }
+        if (VoteStatus.getVoteStatus() != VoteStatusEnum.CLOSED) {
+            return unauthorized();
+        }
+        VoteStats stats = VoteTally.snapshot(idTalk);
+        if (stats == null) {
+            return notFound();
+        }
+        Map<String, Object> result = new HashMap<String, Object>();
+        result.put("nbVotes", stats.nbVotes);
+        result.put("moyenne", stats.getMoyenne());
+        result.put("mediane", stats.getMediane());
+        result.put("ecartType", stats.getEcartType());
+        result.put("repartition", stats.getRepartition());
+        return ok(toJson(result));
+    }
 }
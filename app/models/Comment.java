@@ -1,7 +1,10 @@
 package models;
 
+import com.avaje.ebean.Ebean;
+import models.utils.AfterCommit;
 import models.utils.BooleanUtils;
 import models.utils.Mail;
+import models.utils.NotificationSubscriptions;
 import org.codehaus.jackson.annotate.JsonIgnore;
 import play.data.format.Formats;
 import play.data.validation.Constraints;
@@ -10,9 +13,7 @@ import play.i18n.Messages;
 
 import javax.persistence.*;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 
 @SuppressWarnings("serial")
 @Entity
@@ -48,14 +49,22 @@ public class Comment extends Model {
 
     public static Model.Finder<Long, Comment> find = new Model.Finder<Long, Comment>(Long.class, Comment.class);
     
+    /**
+     * Notifie le speaker et les admins abonnés : mail immédiat, ou ajout au prochain
+     * récapitulatif pour ceux qui l'ont choisi.
+     * S'exécute dans la transaction courante s'il y en a une.
+     */
     public void sendMail() {
     	List<String> emails = new ArrayList<String>();
-        if (BooleanUtils.isNotTrue(privateComment)) {
-    	    addMailIfNotAuthorAndWantReceive(talk.speaker, emails);
+        List<NotificationSubscriptions.Subscriber> recipients = NotificationSubscriptions.recipients(talk.id,
+                author == null ? null : author.id, BooleanUtils.isTrue(privateComment));
+        for (NotificationSubscriptions.Subscriber recipient : recipients) {
+            if (recipient.digest) {
+                PendingNotification.add(Ebean.getReference(User.class, recipient.id), this);
+            } else {
+                emails.add(recipient.email);
+            }
         }
-    	for (User admin : User.findAllAdmin()) {
-    		addMailIfNotAuthorAndWantReceive(admin, emails);
-    	}
 
         if (!emails.isEmpty()) {
             String subjet = Messages.get("talks.comment.new.mail.subject", talk.title);
@@ -65,46 +74,32 @@ public class Comment extends Model {
         }
     }
     
-    private void addMailIfNotAuthorAndWantReceive(User contact, List<String> emails) {
-		if (isNotAuthor(contact)
-				&& wantReceive(contact)) {
-			emails.add(contact.email);
-		}
-	}
-
-	private boolean wantReceive(User contact) {
-		return isSpeakerOfTalkAndWantReceive(contact)
-				|| isAdminAndWantReceiveAll(contact) || isAdminAndHasCommentAndWantReceive(contact);
-	}
-
-	private boolean isAdminAndHasCommentAndWantReceive(User contact) {
-		return contact.admin && contact.getNotifAdminOnTalkWithComment()
-				&& getAuthorsOfComments().contains(contact.id);
-	}
-
-	private boolean isAdminAndWantReceiveAll(User contact) {
-		return contact.admin && contact.getNotifAdminOnAllTalk();
-	}
-
-	private boolean isSpeakerOfTalkAndWantReceive(User contact) {
-		return contact.equals(talk.speaker) && contact.getNotifOnMyTalk();
-	}
-
-	private boolean isNotAuthor(User contact) {
-		return !contact.equals(author);
-	}
-    
-    private Set<Long> authorsOfComments = null;
-    
-    private Set<Long> getAuthorsOfComments() {
-    	if (authorsOfComments == null) {
-	    	authorsOfComments = new HashSet<Long>();
-	    	for (Comment otherComment : talk.comments) {
-	    		authorsOfComments.add(otherComment.author.id);
-	    	}
-		}
-		return authorsOfComments;
-	}
+    @Override
+    public void save() {
+        boolean creation = id == null;
+        super.save();
+        if (creation) {
+            final Long talkId = talk.id;
+            final Long authorId = author == null ? null : author.id;
+            AfterCommit.run(new Runnable() {
+                public void run() {
+                    NotificationSubscriptions.addComment(talkId, authorId);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void delete() {
+        super.delete();
+        final Long talkId = talk.id;
+        final Long authorId = author == null ? null : author.id;
+        AfterCommit.run(new Runnable() {
+            public void run() {
+                NotificationSubscriptions.removeComment(talkId, authorId);
+            }
+        });
+    }
 
     public static List<Comment> findByAuthor(User author) {
         return find.where().eq("author", author).findList();
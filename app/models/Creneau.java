@@ -1,5 +1,8 @@
 package models;
 
+import com.avaje.ebean.ExpressionList;
+import models.utils.ReferenceCache;
+import models.utils.SqlUtils;
 import org.codehaus.jackson.annotate.JsonIgnore;
 import org.codehaus.jackson.annotate.JsonProperty;
 import play.data.format.Formats;
@@ -8,6 +11,7 @@ import play.db.ebean.Model;
 
 import javax.persistence.*;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 @SuppressWarnings("serial")
@@ -85,7 +89,59 @@ public class Creneau extends Model {
     
     public static Finder<Long, Creneau> find = new Finder<Long, Creneau>(Long.class, Creneau.class);
 
+    /**
+     * Créneaux en cache, triés par id, pour les lectures. A invalider après chaque modification.
+     */
+    public static final ReferenceCache<Creneau> cache = new ReferenceCache<Creneau>("creneau",
+            new ReferenceCache.Loader<Creneau>() {
+                public List<Creneau> loadAll() {
+                    return find.orderBy("id").findList();
+                }
+
+                public List<Creneau> loadByIds(Collection<Long> ids) {
+                    return find.where().in("id", ids).findList();
+                }
+
+                public Long idOf(Creneau creneau) {
+                    return creneau.getId();
+                }
+
+                public Creneau copy(Creneau creneau) {
+                    Creneau copy = new Creneau();
+                    copy.id = creneau.id;
+                    copy.libelle = creneau.libelle;
+                    copy.dureeMinutes = creneau.dureeMinutes;
+                    copy.description = creneau.description;
+                    return copy;
+                }
+            });
+
+    /**
+     * Supprime un créneau, ses propositions de talks et les durées préférées qui y font référence,
+     * en un nombre fixe de requêtes. S'exécute dans la transaction courante s'il y en a une.
+     */
+    public static void deleteWithDependencies(Long creneauId) {
+        SqlUtils.executeForId("delete from creneau_talk where creneau_id = :id", creneauId);
+        SqlUtils.executeForId("update talk set duree_preferee_id = null where duree_preferee_id = :id", creneauId);
+        SqlUtils.executeForId("delete from creneau where id = :id", creneauId);
+    }
+
     public static Creneau findByLibelle(String libelle) {
         return find.query().where().eq("libelle", libelle).findUnique();
     }
+
+    /**
+     * Page de créneaux triés par id.
+     *
+     * @param afterId id du dernier créneau déjà lu, null pour la première page
+     * @param maxRows nombre maximum de créneaux renvoyés
+     * @return les créneaux de la page
+     */
+    public static List<Creneau> findPage(Long afterId, int maxRows) {
+        ExpressionList<Creneau> where = find.where();
+        if (afterId != null) {
+            where.gt("id", afterId);
+        }
+        return where.orderBy("id").setMaxRows(maxRows).findList();
+    }
 }
@@ -1,6 +1,7 @@
 package models;
 
 
+import models.utils.ReferenceCache;
 import org.codehaus.jackson.annotate.JsonIgnore;
 import play.data.format.Formats;
 import play.data.validation.Constraints;
@@ -8,6 +9,7 @@ import play.db.ebean.Model;
 
 import javax.persistence.*;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 @SuppressWarnings("serial")
@@ -48,6 +50,31 @@ public class DynamicField extends Model {
 
     public static Model.Finder<Long, DynamicField> find = new Model.Finder<Long, DynamicField>(Long.class, DynamicField.class);
 
+    /**
+     * Champs dynamiques en cache, triés par id, pour les lectures. A invalider après chaque modification.
+     */
+    public static final ReferenceCache<DynamicField> cache = new ReferenceCache<DynamicField>("dynamicField",
+            new ReferenceCache.Loader<DynamicField>() {
+                public List<DynamicField> loadAll() {
+                    return find.orderBy("id").findList();
+                }
+
+                public List<DynamicField> loadByIds(Collection<Long> ids) {
+                    return find.where().in("id", ids).findList();
+                }
+
+                public Long idOf(DynamicField dynamicField) {
+                    return dynamicField.getId();
+                }
+
+                public DynamicField copy(DynamicField dynamicField) {
+                    DynamicField copy = new DynamicField();
+                    copy.id = dynamicField.id;
+                    copy.name = dynamicField.name;
+                    return copy;
+                }
+            });
+
     public static DynamicField findByName(String name) {
         return find.query().where().eq("name", name).findUnique();
     }
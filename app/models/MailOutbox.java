@@ -0,0 +1,164 @@
+package models;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+
+import models.utils.SqlUtils;
+import play.db.ebean.Model;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.SqlRow;
+import com.avaje.ebean.SqlUpdate;
+
+/**
+ * Mail en attente d'envoi.
+ * <p/>
+ * Le mail est enregistré dans la transaction courante (celle du commentaire ou du changement
+ * de statut qui le déclenche) : il n'est envoyé que si cette transaction est validée, et il
+ * survit à un redémarrage. Les mails sont ensuite réservés par lots, avec un jeton propre
+ * à chaque réservation, par {@link models.utils.MailOutboxDispatcher}. Une réservation
+ * trop ancienne (noeud arrêté pendant l'envoi) est reprise par le prochain lot.
+ */
+@SuppressWarnings("serial")
+@Entity
+public class MailOutbox extends Model {
+
+    private static final String SEPARATOR = ",";
+
+    @Id
+    public Long id;
+
+    @Column(length = 255)
+    public String subject;
+
+    /** Sans limite de taille : un récapitulatif contient tous les commentaires en attente d'un utilisateur */
+    @Lob
+    public String message;
+
+    /** Adresses des destinataires, séparées par des virgules */
+    @Column(length = 4000)
+    public String recipients;
+
+    public Date createdAt;
+
+    public int attempts;
+
+    @Column(length = 40)
+    public String claimToken;
+
+    public Date claimedAt;
+
+    public Date sentAt;
+
+    @Column(length = 255)
+    public String lastError;
+
+    public static Model.Finder<Long, MailOutbox> find = new Model.Finder<Long, MailOutbox>(Long.class, MailOutbox.class);
+
+    public List<String> getRecipientList() {
+        return Arrays.asList(recipients.split(SEPARATOR));
+    }
+
+    /**
+     * Enregistre un mail à envoyer, dans la transaction courante s'il y en a une.
+     */
+    public static MailOutbox enqueue(String subject, String message, Collection<String> emails) {
+        StringBuilder recipients = new StringBuilder();
+        for (String email : emails) {
+            if (recipients.length() > 0) {
+                recipients.append(SEPARATOR);
+            }
+            recipients.append(email);
+        }
+        MailOutbox mail = new MailOutbox();
+        mail.subject = subject;
+        mail.message = message;
+        mail.recipients = recipients.toString();
+        mail.createdAt = new Date();
+        mail.save();
+        return mail;
+    }
+
+    /**
+     * Réserve un lot de mails à envoyer : les mails non envoyés, pas encore réservés ou dont
+     * la réservation est plus ancienne que staleMillis, et qui n'ont pas épuisé leurs tentatives.
+     * <p/>
+     * La réservation est conditionnelle : un mail réservé entre-temps par un autre noeud
+     * n'est pas repris.
+     *
+     * @return les mails réservés, tous avec le même jeton
+     */
+    public static List<MailOutbox> claim(int batchSize, long staleMillis, int maxAttempts) {
+        Date now = new Date();
+        Date staleBefore = new Date(now.getTime() - staleMillis);
+
+        List<SqlRow> rows = Ebean.createSqlQuery("select id from mail_outbox"
+                + " where sent_at is null and attempts < :maxAttempts"
+                + " and (claim_token is null or claimed_at < :staleBefore) order by id")
+                .setParameter("maxAttempts", maxAttempts)
+                .setParameter("staleBefore", staleBefore)
+                .setMaxRows(batchSize)
+                .findList();
+        if (rows.isEmpty()) {
+            return new ArrayList<MailOutbox>();
+        }
+        List<Long> ids = new ArrayList<Long>();
+        for (SqlRow row : rows) {
+            ids.add(row.getLong("id"));
+        }
+
+        String token = UUID.randomUUID().toString();
+        SqlUpdate update = Ebean.createSqlUpdate("update mail_outbox set claim_token = :token, claimed_at = :now"
+                + " where id in (" + SqlUtils.joinIds(ids) + ") and sent_at is null"
+                + " and (claim_token is null or claimed_at < :staleBefore)");
+        update.setParameter("token", token);
+        update.setParameter("now", now);
+        update.setParameter("staleBefore", staleBefore);
+        if (update.execute() == 0) {
+            return new ArrayList<MailOutbox>();
+        }
+        return find.where().eq("claimToken", token).orderBy("id").findList();
+    }
+
+    /**
+     * Marque un mail comme envoyé, s'il est toujours réservé avec ce jeton.
+     */
+    public static void markSent(Long id, String token) {
+        SqlUpdate update = Ebean.createSqlUpdate("update mail_outbox set sent_at = :now, claim_token = null"
+                + " where id = :id and claim_token = :token");
+        update.setParameter("now", new Date());
+        update.setParameter("id", id);
+        update.setParameter("token", token);
+        update.execute();
+    }
+
+    /**
+     * Libère un mail dont l'envoi a échoué, pour qu'il soit repris par un prochain lot.
+     */
+    public static void release(Long id, String token, String error) {
+        SqlUpdate update = Ebean.createSqlUpdate("update mail_outbox set attempts = attempts + 1, claim_token = null,"
+                + " last_error = :error where id = :id and claim_token = :token");
+        update.setParameter("error", error != null && error.length() > 255 ? error.substring(0, 255) : error);
+        update.setParameter("id", id);
+        update.setParameter("token", token);
+        update.execute();
+    }
+
+    /**
+     * Supprime les mails envoyés avant la date donnée.
+     */
+    public static int purgeSent(Date before) {
+        SqlUpdate delete = Ebean.createSqlUpdate("delete from mail_outbox where sent_at < :before");
+        delete.setParameter("before", before);
+        return delete.execute();
+    }
+}
@@ -0,0 +1,100 @@
+package models;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.ManyToOne;
+
+import models.utils.SqlUtils;
+import play.db.ebean.Model;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.SqlRow;
+import com.avaje.ebean.SqlUpdate;
+
+/**
+ * Commentaire en attente d'être envoyé, avec les autres, dans le mail récapitulatif
+ * d'un utilisateur ayant choisi ce mode de notification (voir {@link User#getNotifDigest()}).
+ */
+@SuppressWarnings("serial")
+@Entity
+public class PendingNotification extends Model {
+
+    @Id
+    public Long id;
+
+    @ManyToOne
+    public User user;
+
+    public Long talkId;
+
+    @Column(length = 255)
+    public String talkTitle;
+
+    @Column(length = 255)
+    public String authorName;
+
+    @Column(length = 140)
+    public String comment;
+
+    public Date createdAt;
+
+    public static Model.Finder<Long, PendingNotification> find = new Model.Finder<Long, PendingNotification>(Long.class, PendingNotification.class);
+
+    /**
+     * Enregistre un commentaire pour le prochain récapitulatif de l'utilisateur,
+     * dans la transaction courante s'il y en a une.
+     */
+    public static void add(User recipient, Comment comment) {
+        PendingNotification notification = new PendingNotification();
+        notification.user = recipient;
+        notification.talkId = comment.talk.id;
+        notification.talkTitle = comment.talk.title;
+        notification.authorName = comment.author.fullname;
+        notification.comment = comment.comment;
+        notification.createdAt = new Date();
+        notification.save();
+    }
+
+    /**
+     * Utilisateurs dont la plus ancienne notification en attente est antérieure à la date donnée.
+     */
+    public static List<Long> findUserIdsWaitingSince(Date before) {
+        List<SqlRow> rows = Ebean.createSqlQuery("select user_id from pending_notification"
+                + " group by user_id having min(created_at) < :before")
+                .setParameter("before", before)
+                .findList();
+        List<Long> userIds = new ArrayList<Long>();
+        for (SqlRow row : rows) {
+            userIds.add(row.getLong("user_id"));
+        }
+        return userIds;
+    }
+
+    public static List<PendingNotification> findByUser(Long userId) {
+        return find.fetch("user", "email").where().eq("user.id", userId).orderBy("talkId, id").findList();
+    }
+
+    /**
+     * @return le nombre de notifications effectivement supprimées
+     */
+    public static int delete(Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        SqlUpdate delete = Ebean.createSqlUpdate("delete from pending_notification where id in ("
+                + SqlUtils.joinIds(ids) + ")");
+        return delete.execute();
+    }
+
+    public static void deleteByUser(Long userId) {
+        SqlUpdate delete = Ebean.createSqlUpdate("delete from pending_notification where user_id = :userId");
+        delete.setParameter("userId", userId);
+        delete.execute();
+    }
+}
@@ -1,5 +1,8 @@
 package models;
 
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.Transaction;
+import models.utils.ReferenceCache;
 import org.codehaus.jackson.annotate.JsonIgnore;
 import play.data.format.Formats;
 import play.data.validation.Constraints;
@@ -10,7 +13,10 @@ import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.ManyToMany;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 
 @SuppressWarnings("serial")
@@ -31,10 +37,75 @@ public class Tag extends Model {
 
     public static Model.Finder<Long, Tag> find = new Model.Finder<Long, Tag>(Long.class, Tag.class);
 
+    /**
+     * Tags en cache, pour les lectures. Les tags ne sont jamais modifiés ni supprimés ;
+     * un tag créé depuis le chargement du cache y est ajouté à sa première lecture.
+     */
+    public static final ReferenceCache<Tag> cache = new ReferenceCache<Tag>("tag",
+            new ReferenceCache.Loader<Tag>() {
+                public List<Tag> loadAll() {
+                    return find.orderBy("id").findList();
+                }
+
+                public List<Tag> loadByIds(Collection<Long> ids) {
+                    return find.where().in("id", ids).findList();
+                }
+
+                public Long idOf(Tag tag) {
+                    return tag.id;
+                }
+
+                public Tag copy(Tag tag) {
+                    Tag copy = new Tag();
+                    copy.id = tag.id;
+                    copy.nom = tag.nom;
+                    return copy;
+                }
+            });
+
     public static Tag findByTagName(String tag) {
         return find.where().eq("nom", tag).findUnique();
     }
 
+    /**
+     * Résout un ensemble de noms de tags en une seule requête, et crée les tags manquants
+     * en un seul lot. S'exécute dans la transaction courante s'il y en a une.
+     *
+     * @param noms noms des tags (en majuscules)
+     * @return les tags, indexés par nom
+     */
+    public static Map<String, Tag> findOrCreateByTagNames(Collection<String> noms) {
+        Map<String, Tag> tagsByName = new HashMap<String, Tag>();
+        if (noms.isEmpty()) {
+            return tagsByName;
+        }
+        for (Tag tag : find.where().in("nom", noms).findList()) {
+            tagsByName.put(tag.nom, tag);
+        }
+        List<Tag> newTags = new ArrayList<Tag>();
+        for (String nom : noms) {
+            if (!tagsByName.containsKey(nom)) {
+                Tag tag = new Tag();
+                tag.nom = nom;
+                newTags.add(tag);
+                tagsByName.put(nom, tag);
+            }
+        }
+        if (!newTags.isEmpty()) {
+            Transaction transaction = Ebean.currentTransaction();
+            if (transaction != null) {
+                transaction.setBatchMode(true);
+            }
+            Ebean.save(newTags);
+            if (transaction != null) {
+                // Les inserts doivent être exécutés avant d'utiliser les ids des nouveaux tags
+                transaction.flushBatch();
+                transaction.setBatchMode(false);
+            }
+        }
+        return tagsByName;
+    }
+
     @Override
     public String toString() {
         return nom;
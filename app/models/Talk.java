@@ -1,5 +1,9 @@
 package models;
 
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.ExpressionList;
+import com.avaje.ebean.Query;
+import com.avaje.ebean.SqlRow;
 import com.google.common.base.Joiner;
 import org.codehaus.jackson.annotate.JsonIgnore;
 import org.codehaus.jackson.annotate.JsonProperty;
@@ -9,8 +13,14 @@ import play.db.ebean.Model;
 
 import javax.persistence.*;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import models.utils.AfterCommit;
 import models.utils.BooleanUtils;
+import models.utils.NotificationSubscriptions;
+import models.utils.SqlUtils;
+import models.utils.VoteJournal;
 
 @SuppressWarnings("serial")
 @Entity
@@ -102,19 +112,156 @@ public class Talk extends Model {
         return creneaux;
     }
 
+    public void setCreneaux(List<Creneau> creneaux) {
+        this.creneaux = creneaux;
+    }
+
+    @Override
+    public void save() {
+        super.save();
+        indexSpeaker();
+    }
+
+    @Override
+    public void update() {
+        super.update();
+        indexSpeaker();
+    }
+
+    @Override
+    public void delete() {
+        super.delete();
+        final Long talkId = id;
+        AfterCommit.run(new Runnable() {
+            public void run() {
+                NotificationSubscriptions.removeTalk(talkId);
+            }
+        });
+    }
+
+    private void indexSpeaker() {
+        final Long talkId = id;
+        final Long speakerId = speaker == null ? null : speaker.id;
+        AfterCommit.run(new Runnable() {
+            public void run() {
+                NotificationSubscriptions.setSpeaker(talkId, speakerId);
+            }
+        });
+    }
+
     public static Finder<Long, Talk> find = new Finder<Long, Talk>(Long.class, Talk.class);
+
+    /**
+     * Supprime un talk avec ses commentaires (réponses comprises), ses votes, ses statistiques,
+     * ses tags et ses créneaux, en un nombre fixe de requêtes.
+     * S'exécute dans la transaction courante s'il y en a une ; les index en mémoire ne sont pas mis à jour.
+     */
+    public static void deleteWithDependencies(Long talkId) {
+        // Détache d'abord les réponses pour supprimer les commentaires quelle que soit leur profondeur
+        SqlUtils.executeForId("update comment set question_id = null where talk_id = :id", talkId);
+        SqlUtils.executeForId("delete from comment where talk_id = :id", talkId);
+        SqlUtils.executeForId("delete from vote where talk_id = :id", talkId);
+        SqlUtils.executeForId("delete from vote_stats where talk_id = :id", talkId);
+        SqlUtils.executeForId("delete from tag_talk where talk_id = :id", talkId);
+        SqlUtils.executeForId("delete from creneau_talk where talk_id = :id", talkId);
+        SqlUtils.executeForId("delete from talk where id = :id", talkId);
+    }
 	
 	
 	public static Talk findByTitle(String title) {
 		return find.where().eq("title", title).findUnique();
 	}
 	
+    /**
+     * Requête sur les talks lus avec leur speaker et ses credentials, tels que les sérialise
+     * le JSON des listes de talks (voir {@link service.TalkListAssembler}).
+     */
+    public static Query<Talk> withSpeaker() {
+        return find.fetch("speaker").fetch("speaker.credentials");
+    }
+
 	public static List<Talk> findBySpeaker(User speaker) {
-		return find.where().eq("speaker", speaker).findList();
+		return withSpeaker().where().eq("speaker", speaker).findList();
 	}
 
     public static List<Talk> findBySpeakerAndStatus(User speaker,StatusTalk status) {
-        return find.where().eq("statusTalk", status.getInterne()).eq("speaker", speaker).findList();
+        return withSpeaker().where().eq("statusTalk", status.getInterne()).eq("speaker", speaker).findList();
+    }
+
+    /**
+     * @param creneauId id d'un créneau
+     * @return ids des talks proposés pour ce créneau
+     */
+    public static Set<Long> findIdsByCreneau(Long creneauId) {
+        return findIds("select talk_id from creneau_talk where creneau_id = ?", creneauId);
+    }
+
+    /**
+     * @param speakerId id d'un utilisateur
+     * @return ids des talks dont il est le speaker
+     */
+    public static Set<Long> findIdsBySpeaker(Long speakerId) {
+        return findIds("select id as talk_id from talk where speaker_id = ?", speakerId);
+    }
+
+    /**
+     * @param tagName nom d'un tag
+     * @return ids des talks portant ce tag
+     */
+    public static Set<Long> findIdsByTag(String tagName) {
+        return findIds("select tt.talk_id from tag_talk tt join tag tg on tg.id = tt.tag_id where tg.nom = ?",
+                tagName.toUpperCase());
+    }
+
+    private static Set<Long> findIds(String sql, Object parameter) {
+        Set<Long> ids = new HashSet<Long>();
+        for (SqlRow row : Ebean.createSqlQuery(sql).setParameter(1, parameter).findList()) {
+            ids.add(row.getLong("talk_id"));
+        }
+        return ids;
+    }
+
+    /**
+     * Page de talks triés par id, à partir d'un curseur (id du dernier talk de la page précédente).
+     * Les filtres à null sont ignorés.
+     *
+     * @param afterId    id du dernier talk déjà lu, null pour la première page
+     * @param maxRows    nombre maximum de talks renvoyés
+     * @param status     statut des talks
+     * @param tagName    nom d'un tag porté par les talks
+     * @param creneauId  id d'un créneau proposé pour les talks
+     * @param speakerId  id du speaker des talks
+     * @param notVotedBy utilisateur n'ayant pas encore voté pour les talks
+     * @return les talks de la page
+     */
+    public static List<Talk> findPage(Long afterId, int maxRows, StatusTalk status, String tagName,
+                                      Long creneauId, Long speakerId, User notVotedBy) {
+        ExpressionList<Talk> where = withSpeaker().where();
+        if (afterId != null) {
+            where.gt("id", afterId);
+        }
+        if (status != null) {
+            where.eq("statusTalk", status.getInterne());
+        }
+        if (tagName != null) {
+            where.raw("t0.id in (select tt.talk_id from tag_talk tt join tag tg on tg.id = tt.tag_id where tg.nom = ?)",
+                    tagName.toUpperCase());
+        }
+        if (creneauId != null) {
+            where.raw("t0.id in (select ct.talk_id from creneau_talk ct where ct.creneau_id = ?)", creneauId);
+        }
+        if (speakerId != null) {
+            where.eq("speaker.id", speakerId);
+        }
+        if (notVotedBy != null) {
+            where.raw("t0.id not in (select v.talk_id from vote v where v.user_id = ? and v.talk_id is not null)",
+                    notVotedBy.id);
+            Set<Long> pendingTalkIds = VoteJournal.pendingNotes(notVotedBy.id).keySet();
+            if (!pendingTalkIds.isEmpty()) {
+                where.raw("t0.id not in (" + SqlUtils.joinIds(pendingTalkIds) + ")");
+            }
+        }
+        return where.orderBy("id").setMaxRows(maxRows).findList();
     }
 
     @JsonIgnore
@@ -122,6 +269,30 @@ public class Talk extends Model {
 
     public transient Double moyenne;
 
+    public transient Double ecartType;
+
+    public transient Double mediane;
+
+    public transient Integer nbVotes;
+
+    public transient int[] repartition;
+
+    public void setVoteStats(VoteStats stats) {
+        if (stats == null) {
+            moyenne = null;
+            ecartType = null;
+            mediane = null;
+            nbVotes = 0;
+            repartition = new int[VoteStats.NOTE_MAX];
+        } else {
+            moyenne = stats.getMoyenne();
+            ecartType = stats.getEcartType();
+            mediane = stats.getMediane();
+            nbVotes = stats.nbVotes;
+            repartition = stats.getRepartition();
+        }
+    }
+
     @JsonProperty("note")
     public Integer note() {
         return vote ==null ? 0 : vote.getNote();
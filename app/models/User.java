@@ -1,5 +1,9 @@
 package models;
 
+import com.avaje.ebean.BeanState;
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.ExpressionList;
+import com.avaje.ebean.SqlUpdate;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.codehaus.jackson.annotate.JsonIgnore;
 import org.codehaus.jackson.annotate.JsonProperty;
@@ -9,7 +13,12 @@ import play.db.ebean.Model;
 
 import javax.persistence.*;
 import java.util.*;
+import models.utils.AfterCommit;
 import models.utils.BooleanUtils;
+import models.utils.EntityVersions;
+import models.utils.IdentityResolver;
+import models.utils.NotificationSubscriptions;
+import models.utils.SqlUtils;
 
 /**
  *
@@ -50,6 +59,7 @@ public class User extends Model {
     private Boolean notifOnMyTalk;
     private Boolean notifAdminOnAllTalk;
     private Boolean notifAdminOnTalkWithComment;
+    private Boolean notifDigest;
  
     @Constraints.Pattern("^([0-9a-fA-F][0-9a-fA-F]:){5}([0-9a-fA-F][0-9a-fA-F])$")
     public String adresseMac;
@@ -75,14 +85,24 @@ public class User extends Model {
         return dynamicFieldValues;
     }
 
+    /** Champs dynamiques déjà assemblés (liste des utilisateurs), null pour les construire à la demande */
+    private transient List<DynamicFieldJson> dynamicFieldsJson;
+
+    public void setDynamicFieldsJson(List<DynamicFieldJson> dynamicFieldsJson) {
+        this.dynamicFieldsJson = dynamicFieldsJson;
+    }
+
     @JsonProperty("dynamicFields")
     public List<DynamicFieldJson> getDynamicFieldsJson() {
+        if (dynamicFieldsJson != null) {
+            return dynamicFieldsJson;
+        }
         Map<Long, DynamicFieldValue> dynamicFieldValueByDynamicFieldId = new HashMap<Long, DynamicFieldValue>();
         for (DynamicFieldValue value : getDynamicFieldValues()) {
             dynamicFieldValueByDynamicFieldId.put(value.getDynamicField().getId(), value);
         }
         List<DynamicFieldJson> jsonFields = new ArrayList<DynamicFieldJson>();
-        for (DynamicField field : DynamicField.find.all()) {
+        for (DynamicField field : DynamicField.cache.all()) {
             jsonFields.add(DynamicFieldJson.toDynamicFieldJson(field, dynamicFieldValueByDynamicFieldId.get(field.getId())));
         }
         return jsonFields;
@@ -110,6 +130,14 @@ public class User extends Model {
         return BooleanUtils.isNotFalse(notifAdminOnTalkWithComment);
     }
 
+    /**
+     * @return true si l'utilisateur reçoit les nouveaux commentaires dans un mail récapitulatif
+     * plutôt qu'un mail par commentaire
+     */
+    public boolean getNotifDigest() {
+        return BooleanUtils.isTrue(notifDigest);
+    }
+
     public void setNotifOnMyTalk(Boolean notifOnMyTalk) {
         this.notifOnMyTalk = notifOnMyTalk;
     }
@@ -122,6 +150,10 @@ public class User extends Model {
         this.notifAdminOnTalkWithComment = notifAdminOnTalkWithComment;
     }
 
+    public void setNotifDigest(Boolean notifDigest) {
+        this.notifDigest = notifDigest;
+    }
+
     public List<Lien> getLiens() {
         if (liens == null) {
             liens = new ArrayList<Lien>();
@@ -136,6 +168,76 @@ public class User extends Model {
         }
         return avatar;
     }
+    @Override
+    public void save() {
+        boolean jsonChanged = changesJson();
+        super.save();
+        IdentityResolver.invalidate(id);
+        indexSubscriber();
+        if (jsonChanged) {
+            EntityVersions.bump(EntityVersions.USER);
+        }
+    }
+
+    @Override
+    public void update() {
+        boolean jsonChanged = changesJson();
+        super.update();
+        IdentityResolver.invalidate(id);
+        indexSubscriber();
+        if (jsonChanged) {
+            EntityVersions.bump(EntityVersions.USER);
+        }
+    }
+
+    @Override
+    public void delete() {
+        super.delete();
+        IdentityResolver.invalidate(id);
+        final Long userId = id;
+        AfterCommit.run(new Runnable() {
+            public void run() {
+                NotificationSubscriptions.removeUser(userId);
+            }
+        });
+        EntityVersions.bump(EntityVersions.USER);
+    }
+
+    /** Propriétés absentes du JSON des utilisateurs */
+    private static final Set<String> NOT_SERIALIZED = new HashSet<String>(
+            Arrays.asList("authenticationMethod", "credentials", "dynamicFieldValues"));
+
+    /**
+     * A appeler avant la sauvegarde : un utilisateur créé, ou dont une propriété sérialisée en JSON a changé,
+     * change les réponses qui l'incluent (listes d'utilisateurs, speakers des talks).
+     * Les liens et champs dynamiques sont sauvegardés à part, avec leur propre incrément de version.
+     */
+    private boolean changesJson() {
+        BeanState state = Ebean.getBeanState(this);
+        if (state == null || state.isNew()) {
+            return true;
+        }
+        Set<String> changedProps = state.getChangedProps();
+        if (changedProps == null) {
+            return false;
+        }
+        for (String property : changedProps) {
+            if (!NOT_SERIALIZED.contains(property)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void indexSubscriber() {
+        final User user = this;
+        AfterCommit.run(new Runnable() {
+            public void run() {
+                NotificationSubscriptions.updateUser(user);
+            }
+        });
+    }
+
     // -- Queries (long id, user.class)
     public static Model.Finder<Long, User> find = new Model.Finder<Long, User>(Long.class, User.class);
 
@@ -199,6 +301,84 @@ public class User extends Model {
         return find.all();
     }
 
+    /**
+     * Utilisateurs (id, email et admin seulement) correspondant à une liste d'emails, en une requête.
+     * La comparaison ignore la casse : l'email d'un utilisateur retourné peut différer de celui demandé.
+     */
+    public static List<User> findRolesByEmails(Collection<String> emails) {
+        if (emails.isEmpty()) {
+            return new ArrayList<User>();
+        }
+        StringBuilder placeholders = new StringBuilder();
+        List<String> lowerEmails = new ArrayList<String>();
+        for (String email : emails) {
+            placeholders.append(placeholders.length() == 0 ? "?" : ", ?");
+            lowerEmails.add(email.toLowerCase());
+        }
+        return find.select("id, email, admin").where()
+                .raw("lower(email) in (" + placeholders + ")", lowerEmails.toArray()).findList();
+    }
+
+    /**
+     * Change le rôle admin d'un ensemble d'utilisateurs en une requête,
+     * dans la transaction courante s'il y en a une.
+     * Le cache des utilisateurs connectés n'est pas invalidé.
+     *
+     * @return le nombre d'utilisateurs modifiés
+     */
+    public static int updateAdmin(Collection<Long> userIds, boolean admin) {
+        if (userIds.isEmpty()) {
+            return 0;
+        }
+        SqlUpdate update = Ebean.createSqlUpdate("update user set admin = :admin where id in ("
+                + SqlUtils.joinIds(userIds) + ")");
+        update.setParameter("admin", admin);
+        return update.execute();
+    }
+
+    /**
+     * Supprime un utilisateur en un nombre fixe de requêtes : ses talks sont rejetés et n'ont plus de speaker,
+     * ses commentaires n'ont plus d'auteur, ses votes, liens, champs dynamiques, notifications en attente
+     * et identifiants sont supprimés. Les statistiques de votes ne sont pas recalculées.
+     * S'exécute dans la transaction courante s'il y en a une ; les index en mémoire, dont les totaux
+     * de votes de {@link service.VoteTally}, ne sont pas mis à jour (voir Admin.deleteCompte).
+     */
+    public static void deleteWithDependencies(Long userId) {
+        SqlUtils.executeForId("update talk set speaker_id = null, status_talk = '"
+                + StatusTalk.REJETE.getInterne() + "' where speaker_id = :id", userId);
+        SqlUtils.executeForId("update comment set author_id = null where author_id = :id", userId);
+        SqlUtils.executeForId("delete from vote where user_id = :id", userId);
+        SqlUtils.executeForId("delete from pending_notification where user_id = :id", userId);
+        SqlUtils.executeForId("delete from dynamic_field_value where user_id = :id", userId);
+        SqlUtils.executeForId("delete from lien where user_id = :id", userId);
+        // Les identifiants et l'utilisateur se référencent mutuellement
+        SqlUtils.executeForId("update user set credentials_id = null where id = :id", userId);
+        SqlUtils.executeForId("delete from credentials where user_id = :id", userId);
+        SqlUtils.executeForId("delete from user where id = :id", userId);
+    }
+
+    /**
+     * @return true s'il existe au moins un utilisateur (sans charger la table)
+     */
+    public static boolean exists() {
+        return !Ebean.createSqlQuery("select id from user").setMaxRows(1).findList().isEmpty();
+    }
+
+    /**
+     * Page d'utilisateurs triés par id.
+     *
+     * @param afterId id du dernier utilisateur déjà lu, null pour la première page
+     * @param maxRows nombre maximum d'utilisateurs renvoyés
+     * @return les utilisateurs de la page
+     */
+    public static List<User> findPage(Long afterId, int maxRows) {
+        ExpressionList<User> where = find.fetch("credentials").where();
+        if (afterId != null) {
+            where.gt("id", afterId);
+        }
+        return where.orderBy("id").setMaxRows(maxRows).findList();
+    }
+
     public static List<User> findAllAdmin() {
         return find.where().eq("admin", Boolean.TRUE).findList();
     }
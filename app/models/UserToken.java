@@ -0,0 +1,98 @@
+package models;
+
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+import org.joda.time.DateTime;
+
+import play.db.ebean.Model;
+import securesocial.core.java.Token;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.SqlRow;
+import com.avaje.ebean.SqlUpdate;
+
+/**
+ * Jeton SecureSocial (inscription ou réinitialisation du mot de passe d'un compte local).
+ */
+@SuppressWarnings("serial")
+@Entity
+public class UserToken extends Model {
+
+    @Id
+    @Column(length = 36)
+    public String uuid;
+
+    public String email;
+
+    public Date creationTime;
+
+    public Date expirationTime;
+
+    public boolean signUp;
+
+    public static Model.Finder<String, UserToken> find = new Model.Finder<String, UserToken>(String.class, UserToken.class);
+
+    public static UserToken fromToken(Token token) {
+        UserToken userToken = new UserToken();
+        userToken.uuid = token.uuid;
+        userToken.email = token.email;
+        userToken.creationTime = token.creationTime == null ? null : token.creationTime.toDate();
+        userToken.expirationTime = token.expirationTime == null ? null : token.expirationTime.toDate();
+        userToken.signUp = token.isSignUp;
+        return userToken;
+    }
+
+    public Token toToken() {
+        Token token = new Token();
+        token.uuid = uuid;
+        token.email = email;
+        token.creationTime = creationTime == null ? null : new DateTime(creationTime);
+        token.expirationTime = expirationTime == null ? null : new DateTime(expirationTime);
+        token.isSignUp = signUp;
+        return token;
+    }
+
+    public static void deleteByUuid(String uuid) {
+        SqlUpdate delete = Ebean.createSqlUpdate("delete from user_token where uuid = :uuid");
+        delete.setParameter("uuid", uuid);
+        delete.execute();
+    }
+
+    /**
+     * Supprime les jetons expirés, par lots de batchSize pour ne pas verrouiller la table
+     * pendant un pic d'inscriptions.
+     *
+     * @return le nombre de jetons supprimés
+     */
+    public static int deleteExpired(int batchSize) {
+        Date now = new Date();
+        int deleted = 0;
+        while (true) {
+            List<SqlRow> rows = Ebean.createSqlQuery("select uuid from user_token where expiration_time < :now"
+                    + " order by expiration_time")
+                    .setParameter("now", now)
+                    .setMaxRows(batchSize)
+                    .findList();
+            if (rows.isEmpty()) {
+                return deleted;
+            }
+            StringBuilder placeholders = new StringBuilder();
+            for (int i = 0; i < rows.size(); i++) {
+                placeholders.append(i == 0 ? "?" : ", ?");
+            }
+            SqlUpdate delete = Ebean.createSqlUpdate("delete from user_token where uuid in (" + placeholders + ")");
+            for (int i = 0; i < rows.size(); i++) {
+                delete.setParameter(i + 1, rows.get(i).getString("uuid"));
+            }
+            deleted += delete.execute();
+            if (rows.size() < batchSize) {
+                return deleted;
+            }
+        }
+    }
+}
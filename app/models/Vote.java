@@ -1,11 +1,17 @@
 package models;
 
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.SqlRow;
+import models.utils.VoteJournal;
 import org.codehaus.jackson.annotate.JsonIgnore;
 import play.db.ebean.Model;
 
 import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.ManyToOne;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 
 @SuppressWarnings("serial")
 @Entity
@@ -60,7 +66,22 @@ public class Vote extends Model {
     public static Model.Finder<Long, Vote> find = new Model.Finder<Long, Vote>(Long.class, Vote.class);
 
     public static Vote findVoteByUserAndTalk(User user, Talk talk) {
-        return find.query().where().eq("user", user).eq("talk", talk).findUnique();
+        Vote vote = find.query().where().eq("user", user).eq("talk", talk).findUnique();
+        Integer pendingNote = VoteJournal.pendingNotes(user.id).get(talk.id);
+        return pendingNote == null ? vote : withNote(vote, user, talk, pendingNote);
+    }
+
+    /**
+     * Vote tenant compte d'une note pas encore écrite en base (voir {@link VoteJournal}).
+     */
+    private static Vote withNote(Vote vote, User user, Talk talk, Integer note) {
+        if (vote == null) {
+            vote = new Vote();
+            vote.setUser(user);
+            vote.setTalk(talk);
+        }
+        vote.setNote(note);
+        return vote;
     }
 
     public static Double calculMoyenne(Talk talk) {
@@ -76,4 +97,42 @@ public class Vote extends Model {
         }
         return moyenne;
     }
+
+    /**
+     * Votes d'un utilisateur sur un ensemble de talks, en une seule requête.
+     *
+     * @param user l'utilisateur
+     * @param talkIds ids des talks
+     * @return les votes indexés par id de talk
+     */
+    public static Map<Long, Vote> findVotesByUserAndTalks(User user, Collection<Long> talkIds) {
+        Map<Long, Vote> votes = new HashMap<Long, Vote>();
+        if (talkIds.isEmpty()) {
+            return votes;
+        }
+        for (Vote vote : find.query().where().eq("user", user).in("talk.id", talkIds).findList()) {
+            votes.put(vote.getTalk().id, vote);
+        }
+        for (Map.Entry<Long, Integer> pending : VoteJournal.pendingNotes(user.id).entrySet()) {
+            Long talkId = pending.getKey();
+            if (talkIds.contains(talkId)) {
+                votes.put(talkId, withNote(votes.get(talkId), user, Ebean.getReference(Talk.class, talkId),
+                        pending.getValue()));
+            }
+        }
+        return votes;
+    }
+
+    /**
+     * @param userId id de l'utilisateur
+     * @return les notes données par l'utilisateur, indexées par id de talk
+     */
+    public static Map<Long, Integer> findNotesByUser(Long userId) {
+        Map<Long, Integer> notes = new HashMap<Long, Integer>();
+        String sql = "select talk_id, note from vote where user_id = :userId and talk_id is not null and note is not null";
+        for (SqlRow row : Ebean.createSqlQuery(sql).setParameter("userId", userId).findList()) {
+            notes.put(row.getLong("talk_id"), row.getInteger("note"));
+        }
+        return notes;
+    }
 }
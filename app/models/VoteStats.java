@@ -0,0 +1,205 @@
+package models;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+import models.utils.SqlUtils;
+import play.db.ebean.Model;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.SqlUpdate;
+
+/**
+ * Statistiques des votes d'un talk, maintenues au fil de l'eau à chaque vote.
+ * <p/>
+ * Permet d'obtenir moyenne, écart-type et répartition des notes sans relire
+ * l'ensemble des votes du talk.
+ */
+@SuppressWarnings("serial")
+@Entity
+public class VoteStats extends Model {
+
+    public static final int NOTE_MIN = 1;
+    public static final int NOTE_MAX = 5;
+
+    @Id
+    public Long talkId;
+
+    public int nbVotes;
+
+    public long sumNotes;
+
+    public long sumSquares;
+
+    public int note1;
+    public int note2;
+    public int note3;
+    public int note4;
+    public int note5;
+
+    public static Model.Finder<Long, VoteStats> find = new Model.Finder<Long, VoteStats>(Long.class, VoteStats.class);
+
+    public Double getMoyenne() {
+        if (nbVotes == 0) {
+            return null;
+        }
+        return ((double) sumNotes) / nbVotes;
+    }
+
+    public Double getEcartType() {
+        if (nbVotes == 0) {
+            return null;
+        }
+        double moyenne = getMoyenne();
+        double variance = ((double) sumSquares) / nbVotes - moyenne * moyenne;
+        return Math.sqrt(Math.max(0d, variance));
+    }
+
+    public Double getMediane() {
+        if (nbVotes == 0) {
+            return null;
+        }
+        int[] repartition = getRepartition();
+        // Rang (à partir de 1) des deux valeurs centrales, identiques si le nombre de votes est impair
+        int rangBas = (nbVotes + 1) / 2;
+        int rangHaut = nbVotes / 2 + 1;
+        Integer noteBasse = null;
+        Integer noteHaute = null;
+        int cumul = 0;
+        for (int i = 0; i < repartition.length && noteHaute == null; i++) {
+            cumul += repartition[i];
+            if (noteBasse == null && cumul >= rangBas) {
+                noteBasse = i + 1;
+            }
+            if (cumul >= rangHaut) {
+                noteHaute = i + 1;
+            }
+        }
+        return (noteBasse + noteHaute) / 2d;
+    }
+
+    /**
+     * @return nombre de votes pour chaque note, de 1 à 5
+     */
+    public int[] getRepartition() {
+        return new int[]{note1, note2, note3, note4, note5};
+    }
+
+    public static Map<Long, VoteStats> findByTalks(Collection<Long> talkIds) {
+        Map<Long, VoteStats> stats = new HashMap<Long, VoteStats>();
+        if (talkIds.isEmpty()) {
+            return stats;
+        }
+        for (VoteStats oneStats : find.where().in("talkId", talkIds).findList()) {
+            stats.put(oneStats.talkId, oneStats);
+        }
+        return stats;
+    }
+
+    /**
+     * Répercute un vote sur les statistiques du talk.
+     * Doit s'exécuter dans la transaction du vote : au premier vote d'un talk, la ligne de statistiques
+     * est créée sous le verrou de la ligne du talk, pour que deux premiers votes concurrents
+     * ne la créent pas tous les deux.
+     *
+     * @param talkId  id du talk
+     * @param oldNote ancienne note de l'utilisateur, null s'il s'agit d'un nouveau vote
+     * @param newNote nouvelle note
+     */
+    public static void recordVote(Long talkId, Integer oldNote, int newNote) {
+        int[] deltaRepartition = new int[NOTE_MAX];
+        deltaRepartition[newNote - 1]++;
+        int deltaNbVotes = 1;
+        long deltaSum = newNote;
+        long deltaSquares = newNote * newNote;
+        if (oldNote != null) {
+            deltaRepartition[oldNote - 1]--;
+            deltaNbVotes = 0;
+            deltaSum -= oldNote;
+            deltaSquares -= oldNote * oldNote;
+        }
+
+        SqlUpdate update = Ebean.createSqlUpdate("update vote_stats set nb_votes = nb_votes + :nb,"
+                + " sum_notes = sum_notes + :sum, sum_squares = sum_squares + :squares,"
+                + " note1 = note1 + :n1, note2 = note2 + :n2, note3 = note3 + :n3,"
+                + " note4 = note4 + :n4, note5 = note5 + :n5"
+                + " where talk_id = :talkId");
+        update.setParameter("nb", deltaNbVotes);
+        update.setParameter("sum", deltaSum);
+        update.setParameter("squares", deltaSquares);
+        for (int note = NOTE_MIN; note <= NOTE_MAX; note++) {
+            update.setParameter("n" + note, deltaRepartition[note - 1]);
+        }
+        update.setParameter("talkId", talkId);
+
+        if (update.execute() == 0) {
+            Ebean.createSqlQuery("select id from talk where id = :talkId for update")
+                    .setParameter("talkId", talkId).findUnique();
+            // Ligne créée par un vote concurrent pendant l'attente du verrou
+            if (update.execute() > 0) {
+                return;
+            }
+            VoteStats stats = new VoteStats();
+            stats.talkId = talkId;
+            stats.nbVotes = deltaNbVotes;
+            stats.sumNotes = deltaSum;
+            stats.sumSquares = deltaSquares;
+            stats.note1 = deltaRepartition[0];
+            stats.note2 = deltaRepartition[1];
+            stats.note3 = deltaRepartition[2];
+            stats.note4 = deltaRepartition[3];
+            stats.note5 = deltaRepartition[4];
+            stats.save();
+        }
+    }
+
+    public static void deleteForTalks(Collection<Long> talkIds) {
+        if (talkIds.isEmpty()) {
+            return;
+        }
+        Ebean.createSqlUpdate("delete from vote_stats where talk_id in (" + SqlUtils.joinIds(talkIds) + ")").execute();
+    }
+
+    /**
+     * Recalcule entièrement les statistiques à partir de la table des votes.
+     */
+    public static void rebuild() {
+        Ebean.beginTransaction();
+        try {
+            Ebean.createSqlUpdate("delete from vote_stats").execute();
+            insertFromVotes("talk_id is not null");
+            Ebean.commitTransaction();
+        } finally {
+            Ebean.endTransaction();
+        }
+    }
+
+    /**
+     * Recalcule les statistiques de quelques talks à partir de la table des votes,
+     * dans la transaction courante s'il y en a une.
+     */
+    public static void rebuildForTalks(Collection<Long> talkIds) {
+        if (talkIds.isEmpty()) {
+            return;
+        }
+        String talkIn = "talk_id in (" + SqlUtils.joinIds(talkIds) + ")";
+        Ebean.createSqlUpdate("delete from vote_stats where " + talkIn).execute();
+        insertFromVotes(talkIn);
+    }
+
+    private static void insertFromVotes(String condition) {
+        Ebean.createSqlUpdate("insert into vote_stats"
+                + " (talk_id, nb_votes, sum_notes, sum_squares, note1, note2, note3, note4, note5)"
+                + " select talk_id, count(*), sum(note), sum(note * note),"
+                + " sum(case when note = 1 then 1 else 0 end),"
+                + " sum(case when note = 2 then 1 else 0 end),"
+                + " sum(case when note = 3 then 1 else 0 end),"
+                + " sum(case when note = 4 then 1 else 0 end),"
+                + " sum(case when note = 5 then 1 else 0 end)"
+                + " from vote where " + condition + " and note is not null group by talk_id").execute();
+    }
+}
@@ -1,8 +1,11 @@
 package models;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 import javax.persistence.Entity;
 import javax.persistence.Id;
 
+import models.utils.VoteJournal;
 import play.db.ebean.Model;
 
 @SuppressWarnings("serial")
@@ -25,13 +28,32 @@ public class VoteStatus extends Model {
     private static Model.Finder<Long, VoteStatus> find = new Model.Finder<Long, VoteStatus>(Long.class, VoteStatus.class);
 
 
+    /**
+     * Statut courant gardé en mémoire, null tant qu'il n'a pas été chargé depuis la base.
+     */
+    private static final AtomicReference<VoteStatusEnum> current = new AtomicReference<VoteStatusEnum>();
+
+    /**
+     * @return le statut courant du vote, lu en mémoire
+     */
     public static VoteStatusEnum getVoteStatus() {
-        VoteStatus currentStatus = find.findUnique();
-        if (currentStatus == null) {
-            return VoteStatusEnum.NOT_BEGIN;
+        VoteStatusEnum status = current.get();
+        if (status == null) {
+            status = load();
         }
-        return currentStatus.status;
+        return status;
     }
+
+    /**
+     * (Re)charge le statut courant depuis la base, appelé au démarrage de l'application.
+     */
+    public synchronized static VoteStatusEnum load() {
+        VoteStatus currentStatus = find.findUnique();
+        VoteStatusEnum status = currentStatus == null ? VoteStatusEnum.NOT_BEGIN : currentStatus.status;
+        current.set(status);
+        return status;
+    }
+
     private static void deleteAllVotesStatus() {
         for (VoteStatus status : find.all()) {
             status.delete();
@@ -39,9 +61,12 @@ public class VoteStatus extends Model {
     }
 
     public synchronized static void changeVoteStatus(VoteStatusEnum newStatus) {
+        // Les votes en attente sont écrits avant la clôture ou la réouverture du vote
+        VoteJournal.flush();
         deleteAllVotesStatus();
         VoteStatus currentStatus = new VoteStatus();
         currentStatus.status = newStatus;
         currentStatus.save();
+        current.set(newStatus);
     }
 }
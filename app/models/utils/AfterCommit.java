@@ -0,0 +1,65 @@
+package models.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.Transaction;
+
+/**
+ * Mises à jour des index en mémoire à faire une fois la transaction courante validée.
+ * <p/>
+ * Hors transaction explicite, elles sont faites tout de suite. Dans une transaction ouverte par
+ * Ebean.beginTransaction(), elles sont faites par {@link #commit()} et oubliées par {@link #end()}
+ * si la transaction n'a pas été validée : un rollback ne laisse pas l'index en avance sur la base.
+ */
+public class AfterCommit {
+
+    private static class Pending {
+        final Transaction transaction;
+        final List<Runnable> actions = new ArrayList<Runnable>();
+
+        Pending(Transaction transaction) {
+            this.transaction = transaction;
+        }
+    }
+
+    private static final ThreadLocal<Pending> pending = new ThreadLocal<Pending>();
+
+    public static void run(Runnable action) {
+        Transaction transaction = Ebean.currentTransaction();
+        if (transaction == null) {
+            action.run();
+            return;
+        }
+        Pending current = pending.get();
+        if (current == null || current.transaction != transaction) {
+            // Actions d'une transaction terminée sans passer par cette classe : abandonnées
+            current = new Pending(transaction);
+            pending.set(current);
+        }
+        current.actions.add(action);
+    }
+
+    /**
+     * Valide la transaction courante puis fait les mises à jour en attente.
+     */
+    public static void commit() {
+        Ebean.commitTransaction();
+        Pending current = pending.get();
+        pending.remove();
+        if (current != null) {
+            for (Runnable action : current.actions) {
+                action.run();
+            }
+        }
+    }
+
+    /**
+     * Termine la transaction courante (rollback si elle n'a pas été validée), à appeler dans un finally.
+     */
+    public static void end() {
+        pending.remove();
+        Ebean.endTransaction();
+    }
+}
@@ -0,0 +1,80 @@
+package models.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import play.mvc.Http;
+
+/**
+ * Compteurs de version par type d'entité, incrémentés à chaque modification.
+ * <p/>
+ * Servent à construire les ETag des GET : tant que la version n'a pas bougé,
+ * la réponse est un 304 Not Modified, sans requête en base ni sérialisation.
+ * Les compteurs sont en mémoire : le démarrage de l'application les invalide tous.
+ */
+public class EntityVersions {
+
+    public static final String TALK = "talk";
+    public static final String CRENEAU = "creneau";
+    public static final String DYNAMIC_FIELD = "dynamicfield";
+    public static final String USER = "user";
+
+    private static final long EPOCH = System.currentTimeMillis();
+
+    private static final ConcurrentMap<String, AtomicLong> versions = new ConcurrentHashMap<String, AtomicLong>();
+
+    private static AtomicLong counter(String type) {
+        AtomicLong counter = versions.get(type);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = versions.putIfAbsent(type, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+
+    public static void bump(String type) {
+        counter(type).incrementAndGet();
+    }
+
+    public static long get(String type) {
+        return counter(type).get();
+    }
+
+    /**
+     * Construit un ETag à partir des versions des types donnés.
+     *
+     * @param discriminant partie propre à la réponse (par exemple l'utilisateur connecté), peut être null ;
+     *                     l'ETag en contient un condensat SHA-256, sans risque de collision entre deux valeurs
+     * @param types        types d'entités dont dépend la réponse
+     * @return l'ETag, entre guillemets
+     */
+    public static String etag(String discriminant, String... types) {
+        StringBuilder etag = new StringBuilder("\"").append(EPOCH);
+        if (discriminant != null) {
+            etag.append('-').append(DigestUtils.sha256Hex(discriminant));
+        }
+        for (String type : types) {
+            etag.append('-').append(type).append(get(type));
+        }
+        return etag.append('"').toString();
+    }
+
+    /**
+     * Positionne l'ETag sur la réponse courante et indique si le client possède déjà cette version.
+     *
+     * @param etag ETag de la réponse
+     * @return true si la réponse peut être un 304 Not Modified
+     */
+    public static boolean notModified(String etag) {
+        Http.Context context = Http.Context.current();
+        context.response().setHeader(Http.HeaderNames.ETAG, etag);
+        context.response().setHeader(Http.HeaderNames.CACHE_CONTROL, "private, no-cache");
+        return etag.equals(context.request().getHeader(Http.HeaderNames.IF_NONE_MATCH));
+    }
+}
@@ -0,0 +1,168 @@
+package models.utils;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import models.User;
+import play.Configuration;
+import play.mvc.Http;
+import securesocial.core.Identity;
+import securesocial.core.java.SecureSocial;
+
+/**
+ * Résolution de l'utilisateur connecté à partir de l'identité SecureSocial.
+ * <p/>
+ * L'id de l'utilisateur est gardé dans un cache borné (LRU) dont les entrées expirent après un délai :
+ * la plupart des requêtes authentifiées lisent l'utilisateur par sa clé primaire, sans la jointure sur credentials.
+ * Le cache ne garde pas l'entité elle-même, que les contrôleurs modifient : chaque requête lit la sienne,
+ * une seule fois (elle est mémorisée pour la durée de la requête).
+ * Le cache est invalidé à chaque sauvegarde d'un utilisateur.
+ */
+public class IdentityResolver {
+
+    private static final String REQUEST_KEY = "cfp.loggedUser:";
+
+    private static final int MAX_SIZE = configInt("identity.cache.size", 1000);
+
+    private static final long TTL_MILLIS = configInt("identity.cache.ttl", 60) * 1000L;
+
+    private static class CachedUser {
+        final Long userId;
+        final long expiration;
+
+        CachedUser(Long userId, long expiration) {
+            this.userId = userId;
+            this.expiration = expiration;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final Map<String, CachedUser> cache = new LinkedHashMap<String, CachedUser>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedUser> eldest) {
+            if (size() > MAX_SIZE) {
+                unindex(eldest.getValue().userId, eldest.getKey());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /** id de l'utilisateur -> clés du cache, pour l'invalidation sans parcourir le cache */
+    private static final Map<Long, Set<String>> keysByUserId = new HashMap<Long, Set<String>>();
+
+    private static int configInt(String key, int defaultValue) {
+        Integer value = Configuration.root().getInt(key);
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     * @return l'utilisateur connecté pour la requête courante
+     */
+    public static User getLoggedUser() {
+        Identity socialUser = (Identity) Http.Context.current().args.get(SecureSocial.USER_KEY);
+        return findByExternalId(socialUser.id().id(), socialUser.id().providerId());
+    }
+
+    /**
+     * Equivalent de {@link User#findByExternalId(String, String)} passant par le cache.
+     * Dans une requête HTTP, l'utilisateur lu est mémorisé jusqu'à la fin de la requête.
+     */
+    public static User findByExternalId(String extUserId, String providerId) {
+        String key = providerId + ":" + extUserId;
+        Http.Context context = Http.Context.current.get();
+        if (context != null) {
+            User user = (User) context.args.get(REQUEST_KEY + key);
+            if (user != null) {
+                return user;
+            }
+        }
+        User user = null;
+        Long userId = cachedUserId(key);
+        if (userId != null) {
+            user = User.find.byId(userId);
+            if (user == null) {
+                invalidate(userId);
+            }
+        }
+        if (user == null) {
+            user = User.findByExternalId(extUserId, providerId);
+            if (user != null) {
+                cacheUserId(key, user.id);
+            }
+        }
+        if (user != null && context != null) {
+            context.args.put(REQUEST_KEY + key, user);
+        }
+        return user;
+    }
+
+    /**
+     * Retire un utilisateur du cache, à appeler dès qu'il est modifié.
+     *
+     * @param userId id de l'utilisateur
+     */
+    public static void invalidate(Long userId) {
+        if (userId == null) {
+            return;
+        }
+        synchronized (cache) {
+            Set<String> keys = keysByUserId.remove(userId);
+            if (keys != null) {
+                for (String key : keys) {
+                    cache.remove(key);
+                }
+            }
+        }
+    }
+
+    public static void invalidateAll() {
+        synchronized (cache) {
+            cache.clear();
+            keysByUserId.clear();
+        }
+    }
+
+    private static Long cachedUserId(String key) {
+        synchronized (cache) {
+            CachedUser cached = cache.get(key);
+            if (cached == null) {
+                return null;
+            }
+            if (cached.expiration > System.currentTimeMillis()) {
+                return cached.userId;
+            }
+            cache.remove(key);
+            unindex(cached.userId, key);
+            return null;
+        }
+    }
+
+    private static void cacheUserId(String key, Long userId) {
+        synchronized (cache) {
+            cache.put(key, new CachedUser(userId, System.currentTimeMillis() + TTL_MILLIS));
+            Set<String> keys = keysByUserId.get(userId);
+            if (keys == null) {
+                keys = new HashSet<String>();
+                keysByUserId.put(userId, keys);
+            }
+            keys.add(key);
+        }
+    }
+
+    /**
+     * Appelée avec le verrou du cache.
+     */
+    private static void unindex(Long userId, String key) {
+        Set<String> keys = keysByUserId.get(userId);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                keysByUserId.remove(userId);
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package models.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.MappingJsonFactory;
+
+import play.Logger;
+import play.libs.Json;
+import play.mvc.Results;
+
+/**
+ * Réponse JSON envoyée en chunked transfer encoding.
+ * <p/>
+ * Les éléments sont lus par lots, convertis un par un comme le fait {@link Json#toJson(Object)}
+ * et écrits au fil de l'eau avec un générateur Jackson, un chunk par lot : ni la liste complète
+ * ni l'arbre JSON complet ne sont construits en mémoire.
+ * <p/>
+ * Le premier lot est lu par {@link #prepare()}, que le contrôleur appelle avant de renvoyer la réponse :
+ * une erreur de lecture à ce stade donne une erreur 500. Une erreur sur un lot suivant arrive alors que
+ * le statut 200 est déjà parti : elle est loguée et la réponse est terminée, avec un tableau JSON incomplet
+ * que le client ne peut pas analyser.
+ * <p/>
+ * Play 2.0 ne permet pas d'attendre qu'un chunk soit lu par le client avant d'écrire le suivant :
+ * avec un client plus lent que la lecture des lots, les chunks écrits restent en mémoire jusqu'à leur envoi.
+ *
+ * @param <T> type des éléments du tableau JSON
+ */
+public abstract class JsonArrayChunks<T> extends Results.StringChunks {
+
+    public static final int BATCH_SIZE = 100;
+
+    private static final JsonFactory factory = new MappingJsonFactory();
+
+    /** Premier lot, lu avant l'envoi de la réponse */
+    private List<T> firstBatch;
+
+    /**
+     * Lot suivant d'éléments à écrire.
+     *
+     * @param last dernier élément écrit, null pour le premier lot
+     * @return les éléments suivants, une liste vide quand il n'y en a plus
+     */
+    protected abstract List<T> nextBatch(T last);
+
+    /**
+     * Lit le premier lot, à appeler avant de renvoyer la réponse.
+     *
+     * @return this
+     */
+    public JsonArrayChunks<T> prepare() {
+        firstBatch = nextBatch(null);
+        return this;
+    }
+
+    @Override
+    public void onReady(Out<String> out) {
+        if (firstBatch == null) {
+            throw new IllegalStateException("JsonArrayChunks.prepare() doit être appelé avant de renvoyer la réponse");
+        }
+        List<T> batch = firstBatch;
+        firstBatch = null;
+        try {
+            JsonGenerator generator = factory.createJsonGenerator(new ChunkWriter(out));
+            generator.writeStartArray();
+            while (!batch.isEmpty()) {
+                for (T element : batch) {
+                    generator.writeTree(Json.toJson(element));
+                }
+                generator.flush();
+                batch = nextBatch(batch.get(batch.size() - 1));
+            }
+            generator.writeEndArray();
+            generator.flush();
+        } catch (IOException ioException) {
+            Logger.error("Erreur lors de l'écriture d'une réponse JSON en chunks, réponse tronquée", ioException);
+        } catch (RuntimeException runtimeException) {
+            Logger.error("Erreur lors de l'écriture d'une réponse JSON en chunks, réponse tronquée", runtimeException);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writer qui envoie son contenu sous forme d'un chunk à chaque flush.
+     */
+    private static class ChunkWriter extends Writer {
+
+        private final Out<String> out;
+
+        private final StringBuilder buffer = new StringBuilder();
+
+        ChunkWriter(Out<String> out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            buffer.append(cbuf, off, len);
+        }
+
+        @Override
+        public void flush() {
+            if (buffer.length() > 0) {
+                out.write(buffer.toString());
+                buffer.setLength(0);
+            }
+        }
+
+        @Override
+        public void close() {
+            flush();
+        }
+    }
+}
@@ -2,16 +2,9 @@ package models.utils;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
 
-import play.Configuration;
+import models.MailOutbox;
 import play.Logger;
-import play.libs.Akka;
-import akka.util.Duration;
-import akka.util.FiniteDuration;
-
-import com.typesafe.plugin.MailerAPI;
-import com.typesafe.plugin.MailerPlugin;
 
 /**
  * Send a mail with Play20StartApp.
@@ -21,9 +14,6 @@ import com.typesafe.plugin.MailerPlugin;
  */
 public class Mail {
 
-    /** 1 second delay on sending emails */
-    private static final int DELAY = 1;
-
     /**
      * Envelop to prepare.
      */
@@ -54,53 +44,13 @@ public class Mail {
     }
 
     /**
-     * Send a email, using Akka to offload it to an actor.
+     * Send a email. The mail is stored in the outbox within the current transaction,
+     * and sent later by {@link MailOutboxDispatcher}.
      *
      * @param envelop envelop to send
      */
     public static void sendMail(Mail.Envelop envelop) {
-        EnvelopJob envelopJob = new EnvelopJob(envelop);
-        final FiniteDuration delay = Duration.create(DELAY, TimeUnit.SECONDS);
-        Akka.system().scheduler().scheduleOnce(delay, envelopJob);
-    }
-
-    static class EnvelopJob implements Runnable {
-        Mail.Envelop envelop;
-
-        public EnvelopJob(Mail.Envelop envelop) {
-            this.envelop = envelop;
-        }
-
-        public void run() {
-
-            final Configuration root = Configuration.root();
-            final String mailFrom = root.getString("mail.from");
-
-            final String mailSign = root.getString("mail.sign");
-			String messageText = envelop.message + "\n\n " + mailSign;
-			String messageHtml = envelop.message + "<br><br>--<br>" + mailSign;
-
-			for (String toEmail : envelop.toEmails) {
-				sendEmail(mailFrom, messageText, messageHtml, envelop.subject,
-						toEmail);
-			}
-
-			Logger.debug("Mail sent - SMTP:" + root.getString("smtp.host")
-                    + ":" + root.getString("smtp.port")
-                    + " SSL:" + root.getString("smtp.ssl")
-                    + " user:" + root.getString("smtp.user")
-                    + " password:" + root.getString("smtp.password")
-                    + " message:" + messageText);
-        }
-
-		private void sendEmail(final String mailFrom, String messageText,
-				String messageHtml, String subject, String toEmail) {
-			MailerAPI email = play.Play.application().plugin(MailerPlugin.class).email();
-			email.addFrom(mailFrom);
-			email.setSubject(subject);
-			email.addRecipient(toEmail);
-			Logger.debug("Mail.sendMail: Mail will be sent to " + toEmail);
-			email.send(messageText, messageHtml);
-		}
+        Logger.debug("Mail.sendMail: Mail will be sent to " + envelop.toEmails);
+        MailOutbox.enqueue(envelop.subject, envelop.message, envelop.toEmails);
     }
 }
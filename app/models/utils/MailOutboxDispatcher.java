@@ -0,0 +1,116 @@
+package models.utils;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import models.MailOutbox;
+import play.Configuration;
+import play.Logger;
+import play.libs.Akka;
+import akka.actor.Cancellable;
+import akka.util.Duration;
+
+/**
+ * Envoie périodiquement les mails enregistrés dans {@link MailOutbox}.
+ * <p/>
+ * A chaque passage, un lot de mails est réservé puis confié à la {@link MailQueue}.
+ * Un mail n'est marqué envoyé qu'une fois accepté par le serveur SMTP ; s'il échoue,
+ * il est libéré pour un passage suivant. Plusieurs noeuds peuvent tourner en même temps :
+ * la réservation par jeton garantit qu'un mail n'est traité que par un seul d'entre eux.
+ */
+public class MailOutboxDispatcher implements Runnable {
+
+    private static final long DAY_MILLIS = 24L * 3600 * 1000;
+
+    private static Cancellable schedule;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    private final int batchSize;
+    private final long staleMillis;
+    private final int maxAttempts;
+    private final int retentionDays;
+    private final String mailFrom;
+    private final String mailSign;
+    private final String messageIdDomain;
+
+    public MailOutboxDispatcher(Configuration root) {
+        batchSize = getInt(root, "mail.outbox.batchSize", 50);
+        staleMillis = getInt(root, "mail.outbox.staleAfter", 600) * 1000L;
+        maxAttempts = getInt(root, "mail.outbox.maxAttempts", 3);
+        retentionDays = getInt(root, "mail.outbox.retentionDays", 7);
+        mailFrom = root.getString("mail.from");
+        mailSign = root.getString("mail.sign");
+        String hostname = root.getString("server.hostname");
+        messageIdDomain = hostname == null ? "localhost" : hostname.split(":")[0];
+    }
+
+    /**
+     * Planifie l'envoi périodique des mails, sauf si mail.outbox.enabled=false.
+     */
+    public static synchronized void start() {
+        Configuration root = Configuration.root();
+        Boolean enabled = root.getBoolean("mail.outbox.enabled");
+        if (enabled != null && !enabled) {
+            Logger.info("Envoi des mails désactivé (mail.outbox.enabled=false)");
+            return;
+        }
+        int interval = getInt(root, "mail.outbox.interval", 5);
+        schedule = Akka.system().scheduler().schedule(
+                Duration.create(interval, TimeUnit.SECONDS),
+                Duration.create(interval, TimeUnit.SECONDS),
+                new MailOutboxDispatcher(root));
+    }
+
+    public static synchronized void stop() {
+        if (schedule != null) {
+            schedule.cancel();
+            schedule = null;
+        }
+    }
+
+    public void run() {
+        // Un passage à la fois : le précédent peut attendre une place dans la file
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            dispatch();
+            MailOutbox.purgeSent(new Date(System.currentTimeMillis() - retentionDays * DAY_MILLIS));
+        } catch (RuntimeException e) {
+            Logger.error("MailOutboxDispatcher: erreur lors de l'envoi des mails", e);
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private void dispatch() {
+        List<MailOutbox> mails = MailOutbox.claim(batchSize, staleMillis, maxAttempts);
+        for (final MailOutbox mail : mails) {
+            String messageText = mail.message + "\n\n " + mailSign;
+            String messageHtml = mail.message + "<br><br>--<br>" + mailSign;
+            String messageId = "<cfp-outbox-" + mail.id + "@" + messageIdDomain + ">";
+            // Si la file refuse le mail, il reste réservé et sera repris une fois la réservation expirée
+            MailQueue.get().enqueue(mailFrom, mail.subject, messageText, messageHtml, mail.getRecipientList(),
+                    messageId, new MailQueue.Callback() {
+                        public void delivered() {
+                            MailOutbox.markSent(mail.id, mail.claimToken);
+                        }
+
+                        public void failed(Exception cause) {
+                            MailOutbox.release(mail.id, mail.claimToken, cause.getMessage());
+                        }
+                    });
+        }
+        if (!mails.isEmpty()) {
+            Logger.debug("MailOutboxDispatcher: " + mails.size() + " mail(s) mis en file");
+        }
+    }
+
+    private static int getInt(Configuration root, String key, int defaultValue) {
+        Integer value = root.getInt(key);
+        return value == null ? defaultValue : value;
+    }
+}
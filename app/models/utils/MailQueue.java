@@ -0,0 +1,482 @@
+package models.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+import play.Configuration;
+import play.Logger;
+
+/**
+ * File d'envoi des mails.
+ * <p/>
+ * Les mails sont placés dans une file bornée et envoyés par un petit pool de workers.
+ * Chaque worker garde sa connexion SMTP ouverte d'un mail à l'autre. Un mail est envoyé
+ * en une seule transaction SMTP à tous ses destinataires (qui ne se voient pas entre eux).
+ * Les envois en échec sont retentés avec un délai exponentiel, et le nombre de mails
+ * envoyés par minute peut être plafonné.
+ */
+public class MailQueue {
+
+    /**
+     * Paramètres de la file et du serveur SMTP.
+     */
+    public static class Settings {
+        public String host;
+        public int port = 25;
+        public String user;
+        public String password;
+        public boolean ssl = false;
+        public String channel = "starttls";
+
+        /** Nombre maximum de mails en attente dans la file */
+        public int capacity = 1000;
+        /** Nombre de workers (et donc de connexions SMTP) */
+        public int workers = 2;
+        /** Nombre maximum de tentatives pour un mail */
+        public int maxAttempts = 5;
+        /** Délai avant la première nouvelle tentative, doublé à chaque échec */
+        public long backoffMillis = 1000;
+        /** Nombre maximum de mails envoyés par minute, 0 pour ne pas limiter */
+        public int ratePerMinute = 0;
+
+        public static Settings fromConfiguration(Configuration root) {
+            Settings settings = new Settings();
+            settings.host = root.getString("smtp.host");
+            settings.port = getInt(root, "smtp.port", settings.port);
+            settings.user = root.getString("smtp.user");
+            settings.password = root.getString("smtp.password");
+            settings.ssl = root.getBoolean("smtp.ssl") != null && root.getBoolean("smtp.ssl");
+            if (root.getString("smtp.channel") != null) {
+                settings.channel = root.getString("smtp.channel");
+            }
+            settings.capacity = getInt(root, "mail.queue.capacity", settings.capacity);
+            settings.workers = getInt(root, "mail.queue.workers", settings.workers);
+            settings.maxAttempts = getInt(root, "mail.queue.maxAttempts", settings.maxAttempts);
+            settings.backoffMillis = getInt(root, "mail.queue.backoff", (int) settings.backoffMillis);
+            settings.ratePerMinute = getInt(root, "mail.queue.ratePerMinute", settings.ratePerMinute);
+            return settings;
+        }
+
+        private static int getInt(Configuration root, String key, int defaultValue) {
+            Integer value = root.getInt(key);
+            return value == null ? defaultValue : value;
+        }
+    }
+
+    /**
+     * Prévenu, depuis un worker, du résultat final de l'envoi d'un mail.
+     */
+    public interface Callback {
+        void delivered();
+
+        void failed(Exception cause);
+    }
+
+    /**
+     * Mail prêt à être envoyé.
+     */
+    static class Delivery {
+        final String from;
+        final String subject;
+        final String messageText;
+        final String messageHtml;
+        final List<String> recipients;
+        final String messageId;
+        final Callback callback;
+        int attempt = 0;
+
+        Delivery(String from, String subject, String messageText, String messageHtml, List<String> recipients,
+                 String messageId, Callback callback) {
+            this.from = from;
+            this.subject = subject;
+            this.messageText = messageText;
+            this.messageHtml = messageHtml;
+            this.recipients = recipients;
+            this.messageId = messageId;
+            this.callback = callback;
+        }
+
+        void delivered() {
+            if (callback != null) {
+                try {
+                    callback.delivered();
+                } catch (RuntimeException e) {
+                    Logger.error("MailQueue: erreur après l'envoi de " + subject, e);
+                }
+            }
+        }
+
+        void failed(Exception cause) {
+            if (callback != null) {
+                try {
+                    callback.failed(cause);
+                } catch (RuntimeException e) {
+                    Logger.error("MailQueue: erreur après l'échec de " + subject, e);
+                }
+            }
+        }
+    }
+
+    /** Temps d'attente maximum quand la file est pleine */
+    private static final long OFFER_TIMEOUT_SECONDS = 30;
+
+    /** Une connexion SMTP inutilisée depuis ce délai est fermée */
+    private static final long IDLE_TIMEOUT_MILLIS = 30000;
+
+    /** Temps laissé aux workers pour s'arrêter une fois interrompus */
+    private static final long TERMINATION_TIMEOUT_SECONDS = 5;
+
+    private static final long MINUTE_MILLIS = 60000;
+
+    private static MailQueue instance;
+
+    private final Settings settings;
+    private final Session session;
+    private final String protocol;
+    private final BlockingQueue<Delivery> queue;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService retries;
+    private final Deque<Long> sendTimes = new ArrayDeque<Long>();
+
+    /** Mails acceptés et pas encore envoyés ni abandonnés (en file, en cours d'envoi ou en attente d'une nouvelle tentative) */
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private volatile boolean running = true;
+
+    public MailQueue(Settings settings) {
+        this.settings = settings;
+        this.queue = new ArrayBlockingQueue<Delivery>(settings.capacity);
+
+        boolean smtps = settings.ssl && !"starttls".equalsIgnoreCase(settings.channel);
+        this.protocol = smtps ? "smtps" : "smtp";
+        Properties properties = new Properties();
+        String prefix = "mail." + protocol + ".";
+        if (settings.host != null) {
+            properties.put(prefix + "host", settings.host);
+        }
+        properties.put(prefix + "port", String.valueOf(settings.port));
+        properties.put(prefix + "auth", String.valueOf(settings.user != null && settings.user.length() > 0));
+        properties.put(prefix + "connectiontimeout", "30000");
+        properties.put(prefix + "timeout", "30000");
+        if (settings.ssl && !smtps) {
+            properties.put(prefix + "starttls.enable", "true");
+        }
+        this.session = Session.getInstance(properties);
+
+        this.retries = Executors.newSingleThreadScheduledExecutor();
+        this.workers = Executors.newFixedThreadPool(settings.workers);
+        for (int i = 0; i < settings.workers; i++) {
+            workers.execute(new Worker());
+        }
+    }
+
+    /**
+     * File utilisée par l'application, créée à partir de la configuration au premier appel.
+     */
+    public static synchronized MailQueue get() {
+        if (instance == null) {
+            instance = new MailQueue(Settings.fromConfiguration(Configuration.root()));
+        }
+        return instance;
+    }
+
+    /**
+     * Arrête la file de l'application après avoir envoyé les mails en attente.
+     */
+    public static synchronized void stopInstance() {
+        if (instance != null) {
+            instance.shutdown(OFFER_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            instance = null;
+        }
+    }
+
+    /**
+     * Ajoute un mail à la file. Attend qu'une place se libère si la file est pleine.
+     *
+     * @return false si le mail n'a pas pu être mis en file
+     */
+    public boolean enqueue(String from, String subject, String messageText, String messageHtml, List<String> recipients) {
+        return enqueue(from, subject, messageText, messageHtml, recipients, null, null);
+    }
+
+    /**
+     * Ajoute un mail à la file. Attend qu'une place se libère si la file est pleine.
+     *
+     * @param messageId en-tête Message-ID du mail (identique d'une tentative à l'autre), null pour le générer
+     * @param callback  prévenu du résultat final de l'envoi, peut être null
+     * @return false si le mail n'a pas pu être mis en file (le callback n'est alors pas appelé)
+     */
+    public boolean enqueue(String from, String subject, String messageText, String messageHtml, List<String> recipients,
+                           String messageId, Callback callback) {
+        if (!running) {
+            Logger.error("MailQueue: file arrêtée, mail non envoyé : " + subject);
+            return false;
+        }
+        if (recipients.isEmpty()) {
+            if (callback != null) {
+                callback.delivered();
+            }
+            return true;
+        }
+        Delivery delivery = new Delivery(from, subject, messageText, messageHtml, new ArrayList<String>(recipients),
+                messageId, callback);
+        pending.incrementAndGet();
+        try {
+            if (queue.offer(delivery, OFFER_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                return true;
+            }
+            Logger.error("MailQueue: file pleine, mail non envoyé : " + subject);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        pending.decrementAndGet();
+        return false;
+    }
+
+    /**
+     * Arrête d'accepter des mails et attend que les mails en attente soient envoyés,
+     * puis arrête les workers.
+     *
+     * @return true si tous les mails ont été traités dans le délai
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        running = false;
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        try {
+            while (pending.get() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        retries.shutdownNow();
+        workers.shutdownNow();
+        try {
+            // Les workers interrompus ferment leur connexion SMTP
+            if (!workers.awaitTermination(TERMINATION_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                Logger.warn("MailQueue: workers toujours actifs après l'arrêt");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (pending.get() > 0) {
+            Logger.warn("MailQueue: " + pending.get() + " mail(s) non envoyé(s) à l'arrêt");
+            return false;
+        }
+        return true;
+    }
+
+    public int getPending() {
+        return pending.get();
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Attend le droit d'envoyer un mail, selon la limite par minute.
+     */
+    private void acquirePermit() throws InterruptedException {
+        if (settings.ratePerMinute <= 0) {
+            return;
+        }
+        synchronized (sendTimes) {
+            while (true) {
+                long now = System.currentTimeMillis();
+                while (!sendTimes.isEmpty() && sendTimes.peekFirst() <= now - MINUTE_MILLIS) {
+                    sendTimes.pollFirst();
+                }
+                if (sendTimes.size() < settings.ratePerMinute) {
+                    sendTimes.addLast(now);
+                    return;
+                }
+                sendTimes.wait(sendTimes.peekFirst() + MINUTE_MILLIS - now);
+            }
+        }
+    }
+
+    private void retry(final Delivery delivery, Exception cause) {
+        delivery.attempt++;
+        if (delivery.attempt >= settings.maxAttempts || retries.isShutdown()) {
+            failed.incrementAndGet();
+            pending.decrementAndGet();
+            Logger.error("MailQueue: abandon de l'envoi à " + delivery.recipients + " après "
+                    + delivery.attempt + " tentative(s)", cause);
+            delivery.failed(cause);
+            return;
+        }
+        long delay = settings.backoffMillis << (delivery.attempt - 1);
+        Logger.warn("MailQueue: échec de l'envoi à " + delivery.recipients + ", nouvelle tentative dans "
+                + delay + " ms : " + cause.getMessage());
+        retries.schedule(new Runnable() {
+            public void run() {
+                try {
+                    queue.put(delivery);
+                } catch (InterruptedException e) {
+                    pending.decrementAndGet();
+                    failed.incrementAndGet();
+                    delivery.failed(e);
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private MimeMessage buildMessage(final Delivery delivery) throws MessagingException {
+        MimeMessage message;
+        if (delivery.messageId == null) {
+            message = new MimeMessage(session);
+        } else {
+            message = new MimeMessage(session) {
+                @Override
+                protected void updateMessageID() throws MessagingException {
+                    setHeader("Message-ID", delivery.messageId);
+                }
+            };
+        }
+        message.setFrom(new InternetAddress(delivery.from));
+        message.setSubject(delivery.subject, "UTF-8");
+        message.setHeader("To", "undisclosed-recipients:;");
+
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText(delivery.messageText, "UTF-8");
+        MimeBodyPart html = new MimeBodyPart();
+        html.setContent(delivery.messageHtml, "text/html; charset=UTF-8");
+        MimeMultipart content = new MimeMultipart("alternative");
+        content.addBodyPart(text);
+        content.addBodyPart(html);
+        message.setContent(content);
+        message.saveChanges();
+        return message;
+    }
+
+    private static Address[] toAddresses(List<String> emails) throws AddressException {
+        Address[] addresses = new Address[emails.size()];
+        for (int i = 0; i < emails.size(); i++) {
+            addresses[i] = new InternetAddress(emails.get(i));
+        }
+        return addresses;
+    }
+
+    /**
+     * Worker d'envoi, avec sa propre connexion SMTP.
+     */
+    private class Worker implements Runnable {
+
+        private Transport transport;
+
+        private long lastUse;
+
+        public void run() {
+            try {
+                while (running || !queue.isEmpty() || pending.get() > 0) {
+                    Delivery delivery = queue.poll(1, TimeUnit.SECONDS);
+                    if (delivery == null) {
+                        if (transport != null && System.currentTimeMillis() - lastUse > IDLE_TIMEOUT_MILLIS) {
+                            close();
+                        }
+                        continue;
+                    }
+                    deliver(delivery);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+
+        private void deliver(Delivery delivery) throws InterruptedException {
+            acquirePermit();
+            try {
+                MimeMessage message = buildMessage(delivery);
+                connectedTransport().sendMessage(message, toAddresses(delivery.recipients));
+                lastUse = System.currentTimeMillis();
+                sent.incrementAndGet();
+                pending.decrementAndGet();
+                delivery.delivered();
+                Logger.debug("MailQueue: mail envoyé à " + delivery.recipients.size() + " destinataire(s) : " + delivery.subject);
+            } catch (SendFailedException e) {
+                // Certains destinataires ont pu être acceptés : on ne retente que ceux qui restent
+                Address[] unsent = e.getValidUnsentAddresses();
+                if (e.getInvalidAddresses() != null) {
+                    Logger.error("MailQueue: adresse(s) invalide(s) : " + Arrays.toString(e.getInvalidAddresses()));
+                }
+                if (unsent == null || unsent.length == 0) {
+                    failed.incrementAndGet();
+                    pending.decrementAndGet();
+                    delivery.failed(e);
+                    return;
+                }
+                delivery.recipients.clear();
+                for (Address address : unsent) {
+                    delivery.recipients.add(address.toString());
+                }
+                retry(delivery, e);
+            } catch (MessagingException e) {
+                // La connexion est peut-être cassée : elle sera rouverte au prochain envoi
+                close();
+                retry(delivery, e);
+            } catch (RuntimeException e) {
+                // Erreur imprévue (message impossible à construire, transport...) : le mail est abandonné
+                // sans nouvelle tentative, et le worker passe au suivant
+                close();
+                failed.incrementAndGet();
+                pending.decrementAndGet();
+                Logger.error("MailQueue: erreur lors de l'envoi à " + delivery.recipients + ", mail abandonné : "
+                        + delivery.subject, e);
+                delivery.failed(e);
+            }
+        }
+
+        private Transport connectedTransport() throws MessagingException {
+            if (transport == null || !transport.isConnected()) {
+                close();
+                transport = session.getTransport(protocol);
+                transport.connect(settings.host, settings.port, settings.user, settings.password);
+            }
+            return transport;
+        }
+
+        private void close() {
+            if (transport != null) {
+                try {
+                    transport.close();
+                } catch (MessagingException e) {
+                    Logger.debug("MailQueue: erreur à la fermeture de la connexion SMTP", e);
+                }
+                transport = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package models.utils;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import models.PendingNotification;
+import play.Configuration;
+import play.Logger;
+import play.i18n.Lang;
+import play.i18n.Messages;
+import play.libs.Akka;
+import akka.actor.Cancellable;
+import akka.util.Duration;
+
+import com.avaje.ebean.Ebean;
+
+/**
+ * Envoie périodiquement les mails récapitulatifs des nouveaux commentaires.
+ * <p/>
+ * Un utilisateur reçoit son récapitulatif dès que sa plus ancienne notification en attente
+ * a dépassé la fenêtre configurée (mail.digest.window). Les commentaires y sont regroupés par talk.
+ * Les notifications sont supprimées dans la transaction qui enregistre le mail
+ * (voir {@link Mail#sendMail(Mail.Envelop)}) : si un autre noeud les a déjà traitées,
+ * la transaction est annulée.
+ */
+public class NotificationDigest implements Runnable {
+
+    private static final long MINUTE_MILLIS = 60000;
+
+    private static Cancellable schedule;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    private final long windowMillis;
+
+    private final Lang lang;
+
+    public NotificationDigest(Configuration root) {
+        Integer window = root.getInt("mail.digest.window");
+        windowMillis = (window == null ? 60 : window) * MINUTE_MILLIS;
+        String langs = root.getString("application.langs");
+        lang = Lang.forCode(langs == null ? "fr" : langs.split(",")[0].trim());
+    }
+
+    /**
+     * Planifie l'envoi périodique des récapitulatifs, sauf si mail.digest.enabled=false.
+     */
+    public static synchronized void start() {
+        Configuration root = Configuration.root();
+        Boolean enabled = root.getBoolean("mail.digest.enabled");
+        if (enabled != null && !enabled) {
+            Logger.info("Récapitulatifs des commentaires désactivés (mail.digest.enabled=false)");
+            return;
+        }
+        Integer interval = root.getInt("mail.digest.interval");
+        Duration frequency = Duration.create(interval == null ? 60 : interval, TimeUnit.SECONDS);
+        schedule = Akka.system().scheduler().schedule(frequency, frequency, new NotificationDigest(root));
+    }
+
+    public static synchronized void stop() {
+        if (schedule != null) {
+            schedule.cancel();
+            schedule = null;
+        }
+    }
+
+    public void run() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            for (Long userId : PendingNotification.findUserIdsWaitingSince(new Date(System.currentTimeMillis() - windowMillis))) {
+                sendDigest(userId);
+            }
+        } catch (RuntimeException e) {
+            Logger.error("NotificationDigest: erreur lors de l'envoi des récapitulatifs", e);
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private void sendDigest(Long userId) {
+        Ebean.beginTransaction();
+        try {
+            List<PendingNotification> notifications = PendingNotification.findByUser(userId);
+            if (notifications.isEmpty()) {
+                return;
+            }
+            List<Long> ids = new ArrayList<Long>();
+            for (PendingNotification notification : notifications) {
+                ids.add(notification.id);
+            }
+            if (PendingNotification.delete(ids) != ids.size()) {
+                // Récapitulatif déjà envoyé par un autre noeud
+                return;
+            }
+            String subject = Messages.get(lang, "talks.comment.digest.mail.subject", notifications.size());
+            Mail.sendMail(new Mail.Envelop(subject, render(notifications), notifications.get(0).user.email));
+            Ebean.commitTransaction();
+        } finally {
+            Ebean.endTransaction();
+        }
+    }
+
+    /**
+     * Met en forme les commentaires, regroupés par talk (les notifications sont triées par talk).
+     */
+    private String render(List<PendingNotification> notifications) {
+        StringBuilder message = new StringBuilder(Messages.get(lang, "talks.comment.digest.mail.message"));
+        Long talkId = null;
+        for (PendingNotification notification : notifications) {
+            if (!notification.talkId.equals(talkId)) {
+                talkId = notification.talkId;
+                message.append(Messages.get(lang, "talks.comment.digest.mail.talk", notification.talkTitle));
+            }
+            message.append(Messages.get(lang, "talks.comment.digest.mail.comment",
+                    notification.authorName, notification.comment));
+        }
+        return message.toString();
+    }
+}
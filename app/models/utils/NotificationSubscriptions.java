@@ -0,0 +1,192 @@
+package models.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import models.User;
+import play.Logger;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.SqlRow;
+
+/**
+ * Abonnements aux notifications de commentaires, en mémoire.
+ * <p/>
+ * Garde pour chaque utilisateur ses préférences de notification, pour chaque talk son speaker
+ * et les auteurs de ses commentaires. La liste des destinataires d'un nouveau commentaire
+ * s'obtient ainsi sans requête. L'index est reconstruit au démarrage puis tenu à jour
+ * à l'enregistrement des utilisateurs, des talks et des commentaires, une fois la transaction
+ * validée (voir {@link AfterCommit}).
+ */
+public class NotificationSubscriptions {
+
+    /**
+     * Préférences de notification d'un utilisateur.
+     */
+    public static class Subscriber {
+        public final Long id;
+        public final String email;
+        public final boolean admin;
+        public final boolean notifOnMyTalk;
+        public final boolean notifAdminOnAllTalk;
+        public final boolean notifAdminOnTalkWithComment;
+        public final boolean digest;
+
+        Subscriber(Long id, String email, boolean admin, boolean notifOnMyTalk, boolean notifAdminOnAllTalk,
+                   boolean notifAdminOnTalkWithComment, boolean digest) {
+            this.id = id;
+            this.email = email;
+            this.admin = admin;
+            this.notifOnMyTalk = notifOnMyTalk;
+            this.notifAdminOnAllTalk = notifAdminOnAllTalk;
+            this.notifAdminOnTalkWithComment = notifAdminOnTalkWithComment;
+            this.digest = digest;
+        }
+    }
+
+    private static final Map<Long, Subscriber> subscribers = new HashMap<Long, Subscriber>();
+
+    private static final Map<Long, Subscriber> admins = new HashMap<Long, Subscriber>();
+
+    /** id du talk -> id du speaker */
+    private static final Map<Long, Long> speakers = new HashMap<Long, Long>();
+
+    /** id du talk -> (id de l'auteur -> nombre de commentaires) */
+    private static final Map<Long, Map<Long, Integer>> commenters = new HashMap<Long, Map<Long, Integer>>();
+
+    /**
+     * Destinataires d'un nouveau commentaire : le speaker du talk (sauf commentaire privé) et les admins
+     * qui suivent tous les talks ou qui ont commenté ce talk, selon leurs préférences, hors auteur.
+     */
+    public static synchronized List<Subscriber> recipients(Long talkId, Long authorId, boolean privateComment) {
+        List<Subscriber> recipients = new ArrayList<Subscriber>();
+        Long speakerId = speakers.get(talkId);
+        Map<Long, Integer> talkCommenters = commenters.get(talkId);
+
+        Subscriber speaker = speakerId == null ? null : subscribers.get(speakerId);
+        if (speaker != null && !speaker.admin && !privateComment
+                && !speaker.id.equals(authorId) && speaker.notifOnMyTalk) {
+            recipients.add(speaker);
+        }
+        for (Subscriber admin : admins.values()) {
+            if (admin.id.equals(authorId)) {
+                continue;
+            }
+            boolean isSpeaker = admin.id.equals(speakerId);
+            boolean hasCommented = talkCommenters != null && talkCommenters.containsKey(admin.id);
+            if ((isSpeaker && admin.notifOnMyTalk)
+                    || admin.notifAdminOnAllTalk
+                    || (hasCommented && admin.notifAdminOnTalkWithComment)) {
+                recipients.add(admin);
+            }
+        }
+        return recipients;
+    }
+
+    public static synchronized void updateUser(User user) {
+        removeUser(user.id);
+        Subscriber subscriber = new Subscriber(user.id, user.email, BooleanUtils.isTrue(user.admin),
+                user.getNotifOnMyTalk(), user.getNotifAdminOnAllTalk(), user.getNotifAdminOnTalkWithComment(),
+                user.getNotifDigest());
+        addSubscriber(subscriber);
+    }
+
+    public static synchronized void setAdmin(Long userId, boolean admin) {
+        Subscriber subscriber = subscribers.get(userId);
+        if (subscriber != null) {
+            removeUser(userId);
+            addSubscriber(new Subscriber(subscriber.id, subscriber.email, admin, subscriber.notifOnMyTalk,
+                    subscriber.notifAdminOnAllTalk, subscriber.notifAdminOnTalkWithComment, subscriber.digest));
+        }
+    }
+
+    public static synchronized void removeUser(Long userId) {
+        subscribers.remove(userId);
+        admins.remove(userId);
+    }
+
+    public static synchronized void setSpeaker(Long talkId, Long speakerId) {
+        if (speakerId == null) {
+            speakers.remove(talkId);
+        } else {
+            speakers.put(talkId, speakerId);
+        }
+    }
+
+    public static synchronized void removeTalk(Long talkId) {
+        speakers.remove(talkId);
+        commenters.remove(talkId);
+    }
+
+    public static synchronized void addComment(Long talkId, Long authorId) {
+        if (authorId == null) {
+            return;
+        }
+        Map<Long, Integer> talkCommenters = commenters.get(talkId);
+        if (talkCommenters == null) {
+            talkCommenters = new HashMap<Long, Integer>();
+            commenters.put(talkId, talkCommenters);
+        }
+        Integer count = talkCommenters.get(authorId);
+        talkCommenters.put(authorId, count == null ? 1 : count + 1);
+    }
+
+    public static synchronized void removeComment(Long talkId, Long authorId) {
+        Map<Long, Integer> talkCommenters = commenters.get(talkId);
+        if (authorId == null || talkCommenters == null) {
+            return;
+        }
+        Integer count = talkCommenters.get(authorId);
+        if (count == null || count <= 1) {
+            talkCommenters.remove(authorId);
+        } else {
+            talkCommenters.put(authorId, count - 1);
+        }
+    }
+
+    /**
+     * Reconstruit l'index à partir de la base.
+     */
+    public static synchronized void rebuild() {
+        subscribers.clear();
+        admins.clear();
+        speakers.clear();
+        commenters.clear();
+
+        String sqlUsers = "select id, email, admin, notif_on_my_talk, notif_admin_on_all_talk,"
+                + " notif_admin_on_talk_with_comment, notif_digest from user";
+        for (SqlRow row : Ebean.createSqlQuery(sqlUsers).findList()) {
+            addSubscriber(new Subscriber(row.getLong("id"), row.getString("email"),
+                    BooleanUtils.isTrue(row.getBoolean("admin")),
+                    BooleanUtils.isNotFalse(row.getBoolean("notif_on_my_talk")),
+                    BooleanUtils.isNotFalse(row.getBoolean("notif_admin_on_all_talk")),
+                    BooleanUtils.isNotFalse(row.getBoolean("notif_admin_on_talk_with_comment")),
+                    BooleanUtils.isTrue(row.getBoolean("notif_digest"))));
+        }
+        for (SqlRow row : Ebean.createSqlQuery("select id, speaker_id from talk where speaker_id is not null").findList()) {
+            speakers.put(row.getLong("id"), row.getLong("speaker_id"));
+        }
+        String sqlComments = "select talk_id, author_id, count(*) as nb from comment"
+                + " where author_id is not null group by talk_id, author_id";
+        for (SqlRow row : Ebean.createSqlQuery(sqlComments).findList()) {
+            Long talkId = row.getLong("talk_id");
+            Map<Long, Integer> talkCommenters = commenters.get(talkId);
+            if (talkCommenters == null) {
+                talkCommenters = new HashMap<Long, Integer>();
+                commenters.put(talkId, talkCommenters);
+            }
+            talkCommenters.put(row.getLong("author_id"), row.getInteger("nb"));
+        }
+        Logger.info("Abonnements aux notifications reconstruits : " + subscribers.size() + " utilisateurs, "
+                + speakers.size() + " talks");
+    }
+
+    private static void addSubscriber(Subscriber subscriber) {
+        subscribers.put(subscriber.id, subscriber);
+        if (subscriber.admin) {
+            admins.put(subscriber.id, subscriber);
+        }
+    }
+}
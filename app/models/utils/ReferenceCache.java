@@ -0,0 +1,261 @@
+package models.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import play.Configuration;
+import play.Logger;
+
+/**
+ * Cache en lecture d'une table de référence (créneaux, champs dynamiques, tags...).
+ * <p/>
+ * Ces tables sont petites, lues à presque chaque requête et modifiées quelques fois par CFP :
+ * le cache en garde une copie complète, chargée à la première lecture puis conservée
+ * jusqu'à son invalidation explicite par les contrôleurs qui les modifient,
+ * ou au plus cache.reference.ttl secondes. Les ids inconnus du cache sont lus en base puis ajoutés,
+ * ce qui couvre les lignes créées sans invalidation. Le cache peut être désactivé
+ * (cache.reference.enabled=false) : chaque lecture va alors en base.
+ * <p/>
+ * Les lignes en cache ne sortent jamais du cache : chaque lecture renvoie des copies sans leurs associations,
+ * qu'une requête peut sérialiser ou modifier sans effet sur les autres. Ces copies ne sont pas faites
+ * pour être sauvegardées ni associées à une entité : utiliser Ebean.getReference pour une association,
+ * et relire l'entité en base pour la modifier.
+ */
+public class ReferenceCache<T> {
+
+    /**
+     * Chargement de la table.
+     */
+    public interface Loader<T> {
+        /**
+         * @return toutes les lignes, dans l'ordre où elles doivent être listées
+         */
+        List<T> loadAll();
+
+        List<T> loadByIds(Collection<Long> ids);
+
+        Long idOf(T bean);
+
+        /**
+         * @return une copie détachée de la ligne, avec ses seuls attributs simples
+         */
+        T copy(T bean);
+    }
+
+    /**
+     * Compteurs d'un cache, exposés aux admins.
+     */
+    public static class Stats {
+        public final String name;
+        public final int size;
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+
+        Stats(String name, int size, long hits, long misses, long evictions) {
+            this.name = name;
+            this.size = size;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+        }
+    }
+
+    private static final List<ReferenceCache<?>> caches = new CopyOnWriteArrayList<ReferenceCache<?>>();
+
+    private static volatile boolean enabled = true;
+
+    private static volatile long ttlMillis = 3600 * 1000L;
+
+    private final String name;
+    private final Loader<T> loader;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /** Incrémenté à chaque invalidation : un chargement concurrent à une invalidation n'est pas conservé */
+    private final AtomicLong version = new AtomicLong();
+
+    /** Contenu courant, null s'il faut recharger */
+    private volatile Snapshot<T> snapshot;
+
+    private static final class Snapshot<T> {
+        private final Map<Long, T> byId;
+        private final List<T> all;
+        private final long loadedAt;
+
+        Snapshot(Map<Long, T> byId, List<T> all, long loadedAt) {
+            this.byId = byId;
+            this.all = all;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    public ReferenceCache(String name, Loader<T> loader) {
+        this.name = name;
+        this.loader = loader;
+        caches.add(this);
+    }
+
+    /**
+     * @return des copies de toutes les lignes de la table
+     */
+    public List<T> all() {
+        Snapshot<T> current = snapshot;
+        if (current != null && !isExpired(current)) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            current = load();
+        }
+        List<T> copies = new ArrayList<T>(current.all.size());
+        for (T bean : current.all) {
+            copies.add(loader.copy(bean));
+        }
+        return copies;
+    }
+
+    /**
+     * @return une copie de la ligne d'id donné, null si elle n'existe pas
+     */
+    public T get(Long id) {
+        if (id == null) {
+            return null;
+        }
+        return getAll(Collections.singleton(id)).get(id);
+    }
+
+    /**
+     * Lit en une requête au plus les lignes absentes du cache.
+     *
+     * @return des copies des lignes d'ids donnés présentes dans la table, indexées par id
+     */
+    public Map<Long, T> getAll(Collection<Long> ids) {
+        Map<Long, T> beans = new LinkedHashMap<Long, T>();
+        if (ids.isEmpty()) {
+            return beans;
+        }
+        if (!enabled) {
+            misses.incrementAndGet();
+            for (T bean : loader.loadByIds(ids)) {
+                beans.put(loader.idOf(bean), bean);
+            }
+            return beans;
+        }
+        Snapshot<T> current = snapshot;
+        if (current == null || isExpired(current)) {
+            misses.incrementAndGet();
+            current = load();
+        } else {
+            hits.incrementAndGet();
+        }
+        List<Long> missingIds = new ArrayList<Long>();
+        for (Long id : ids) {
+            T bean = current.byId.get(id);
+            if (bean == null) {
+                missingIds.add(id);
+            } else {
+                beans.put(id, loader.copy(bean));
+            }
+        }
+        if (!missingIds.isEmpty()) {
+            misses.incrementAndGet();
+            long loadedVersion = version.get();
+            List<T> loaded = loader.loadByIds(missingIds);
+            for (T bean : loaded) {
+                beans.put(loader.idOf(bean), loader.copy(bean));
+            }
+            addToSnapshot(current, loadedVersion, loaded);
+        }
+        return beans;
+    }
+
+    /**
+     * Oublie le contenu du cache, à appeler après une modification de la table.
+     */
+    public void invalidate() {
+        version.incrementAndGet();
+        if (snapshot != null) {
+            snapshot = null;
+            evictions.incrementAndGet();
+        }
+    }
+
+    public Stats getStats() {
+        Snapshot<T> current = snapshot;
+        return new Stats(name, current == null ? 0 : current.all.size(), hits.get(), misses.get(), evictions.get());
+    }
+
+    public static List<Stats> allStats() {
+        List<Stats> stats = new ArrayList<Stats>();
+        for (ReferenceCache<?> cache : caches) {
+            stats.add(cache.getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Lit la configuration et vide tous les caches, au démarrage de l'application.
+     */
+    public static void start() {
+        Configuration root = Configuration.root();
+        Boolean enabledConf = root.getBoolean("cache.reference.enabled");
+        enabled = enabledConf == null || enabledConf;
+        Integer ttl = root.getInt("cache.reference.ttl");
+        ttlMillis = (ttl == null ? 3600 : ttl) * 1000L;
+        for (ReferenceCache<?> cache : caches) {
+            cache.version.incrementAndGet();
+            cache.snapshot = null;
+        }
+    }
+
+    private boolean isExpired(Snapshot<T> current) {
+        if (current.loadedAt + ttlMillis < System.currentTimeMillis()) {
+            invalidate();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Charge toute la table et la garde en cache, sauf si le cache a été invalidé pendant le chargement.
+     */
+    private Snapshot<T> load() {
+        long loadedVersion = version.get();
+        List<T> all = loader.loadAll();
+        Map<Long, T> byId = new LinkedHashMap<Long, T>();
+        for (T bean : all) {
+            byId.put(loader.idOf(bean), bean);
+        }
+        Snapshot<T> loaded = new Snapshot<T>(byId, Collections.unmodifiableList(all), System.currentTimeMillis());
+        Logger.debug("ReferenceCache " + name + ": " + all.size() + " ligne(s) chargée(s)");
+        if (enabled && version.get() == loadedVersion) {
+            snapshot = loaded;
+        }
+        return loaded;
+    }
+
+    /**
+     * Ajoute au cache des lignes lues une à une, si le contenu n'a pas changé entre-temps.
+     */
+    private synchronized void addToSnapshot(Snapshot<T> base, long loadedVersion, List<T> beans) {
+        if (beans.isEmpty() || snapshot != base || version.get() != loadedVersion) {
+            return;
+        }
+        Map<Long, T> byId = new LinkedHashMap<Long, T>(base.byId);
+        List<T> all = new ArrayList<T>(base.all);
+        for (T bean : beans) {
+            if (byId.put(loader.idOf(bean), bean) == null) {
+                all.add(bean);
+            }
+        }
+        snapshot = new Snapshot<T>(byId, Collections.unmodifiableList(all), base.loadedAt);
+    }
+}
@@ -0,0 +1,42 @@
+package models.utils;
+
+import java.util.Collection;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.SqlUpdate;
+
+/**
+ * Petits utilitaires pour les requêtes SQL écrites à la main.
+ */
+public class SqlUtils {
+
+    /**
+     * Construit le contenu d'une clause "in (...)" à partir d'une liste d'ids.
+     * Les ids étant des Long, il n'y a pas de risque d'injection.
+     *
+     * @param ids liste d'ids (non vide)
+     * @return les ids séparés par des virgules
+     */
+    public static String joinIds(Collection<Long> ids) {
+        StringBuilder builder = new StringBuilder();
+        for (Long id : ids) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(id.longValue());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Exécute une requête de mise à jour dont l'unique paramètre est nommé ":id",
+     * dans la transaction courante s'il y en a une.
+     *
+     * @return le nombre de lignes modifiées
+     */
+    public static int executeForId(String sql, Long id) {
+        SqlUpdate update = Ebean.createSqlUpdate(sql);
+        update.setParameter("id", id);
+        return update.execute();
+    }
+}
@@ -0,0 +1,405 @@
+package models.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import models.Talk;
+import models.User;
+import models.Vote;
+import models.VoteStats;
+import play.Configuration;
+import play.Logger;
+import play.libs.Akka;
+import service.VoteTally;
+import akka.actor.Cancellable;
+import akka.util.Duration;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.SqlUpdate;
+import com.avaje.ebean.Transaction;
+
+/**
+ * Journal des votes en écriture différée (activé par vote.writeBehind.enabled).
+ * <p/>
+ * Un vote est pris en compte en mémoire puis écrit plus tard : les votes successifs d'un utilisateur
+ * sur un même talk sont fusionnés, et les votes en attente sont écrits par lots dans une seule transaction,
+ * à intervalle régulier ou dès que vote.writeBehind.maxPending votes sont en attente.
+ * Le journal est vidé à l'arrêt de l'application et à chaque changement de statut du vote.
+ * Les lectures des votes d'un utilisateur tiennent compte des votes en attente (voir {@link #pendingNotes(Long)}).
+ * <p/>
+ * Si l'écriture d'un lot échoue, ses votes sont réécrits un par un : un vote qui échoue encore
+ * reste en attente, et il est abandonné (avec une erreur dans les logs) après {@value #MAX_ATTEMPTS} échecs :
+ * le décompte de {@link VoteTally} revient alors à la note enregistrée en base.
+ */
+public class VoteJournal {
+
+    private static final class Key {
+        private final Long userId;
+        private final Long talkId;
+
+        Key(Long userId, Long talkId) {
+            this.userId = userId;
+            this.talkId = talkId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return userId.equals(other.userId) && talkId.equals(other.talkId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * userId.hashCode() + talkId.hashCode();
+        }
+    }
+
+    private static final class Entry {
+        private final Long userId;
+        private final Long talkId;
+        /** Note en base (ou qui y sera à la fin de l'écriture en cours), null si le vote n'y est pas encore */
+        private Integer storedNote;
+        private int note;
+        /** Nombre d'écritures en échec, modifié seulement pendant l'écriture */
+        private int attempts;
+
+        Entry(Long userId, Long talkId, Integer storedNote, int note) {
+            this.userId = userId;
+            this.talkId = talkId;
+            this.storedNote = storedNote;
+            this.note = note;
+        }
+    }
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    private static final Object lock = new Object();
+
+    /** Votes en attente d'écriture */
+    private static Map<Key, Entry> pending = new HashMap<Key, Entry>();
+
+    /** Votes en cours d'écriture, dont seul le nombre d'échecs peut changer */
+    private static Map<Key, Entry> inFlight = new HashMap<Key, Entry>();
+
+    /** Utilisateurs en cours de suppression, dont les votes ne sont plus acceptés */
+    private static final Set<Long> heldUsers = new HashSet<Long>();
+
+    /** Nombre d'écritures terminées, pour détecter une écriture concurrente à une lecture en base */
+    private static long flushCount;
+
+    /** Une seule écriture à la fois */
+    private static final Object flushLock = new Object();
+
+    private static final AtomicBoolean flushRequested = new AtomicBoolean(false);
+
+    private static volatile boolean enabled;
+
+    private static volatile int maxPending = 500;
+
+    private static Cancellable schedule;
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Active le journal si la configuration le demande et planifie son écriture périodique.
+     */
+    public static synchronized void start() {
+        Configuration root = Configuration.root();
+        Boolean enabledConf = root.getBoolean("vote.writeBehind.enabled");
+        if (enabledConf == null || !enabledConf) {
+            return;
+        }
+        Integer maxPendingConf = root.getInt("vote.writeBehind.maxPending");
+        if (maxPendingConf != null) {
+            maxPending = maxPendingConf;
+        }
+        Integer interval = root.getInt("vote.writeBehind.interval");
+        Duration frequency = Duration.create(interval == null ? 1000 : interval, TimeUnit.MILLISECONDS);
+        schedule = Akka.system().scheduler().schedule(frequency, frequency, new Runnable() {
+            public void run() {
+                flushQuietly();
+            }
+        });
+        enabled = true;
+        Logger.info("Ecriture différée des votes activée");
+    }
+
+    /**
+     * Ecrit les votes en attente puis désactive le journal : les votes suivants sont écrits directement.
+     */
+    public static synchronized void stop() {
+        if (schedule != null) {
+            schedule.cancel();
+            schedule = null;
+        }
+        flush();
+        enabled = false;
+        // Votes reçus pendant la première écriture
+        flush();
+    }
+
+    /**
+     * Prend en compte un vote.
+     *
+     * @return l'ancienne note de l'utilisateur pour ce talk, null s'il s'agit d'un nouveau vote
+     * @throws IllegalStateException si l'utilisateur est en cours de suppression
+     */
+    public static Integer record(User user, Talk talk, int note) {
+        Key key = new Key(user.id, talk.id);
+        Integer oldNote;
+        int nbPending;
+        while (true) {
+            long flushCountBeforeRead;
+            synchronized (lock) {
+                if (heldUsers.contains(user.id)) {
+                    throw new IllegalStateException("Utilisateur " + user.id + " en cours de suppression, vote refusé");
+                }
+                Entry entry = pending.get(key);
+                if (entry == null) {
+                    Entry writing = inFlight.get(key);
+                    if (writing != null) {
+                        entry = new Entry(user.id, talk.id, writing.note, writing.note);
+                        pending.put(key, entry);
+                    }
+                }
+                if (entry != null) {
+                    oldNote = entry.note;
+                    entry.note = note;
+                    nbPending = pending.size();
+                    break;
+                }
+                flushCountBeforeRead = flushCount;
+            }
+            // Lecture en base hors verrou ; à refaire si une écriture s'est terminée entre-temps
+            Vote vote = Vote.find.where().eq("user", user).eq("talk", talk).findUnique();
+            synchronized (lock) {
+                if (heldUsers.contains(user.id)) {
+                    throw new IllegalStateException("Utilisateur " + user.id + " en cours de suppression, vote refusé");
+                }
+                if (flushCount == flushCountBeforeRead && !pending.containsKey(key) && !inFlight.containsKey(key)) {
+                    oldNote = vote == null ? null : vote.getNote();
+                    pending.put(key, new Entry(user.id, talk.id, oldNote, note));
+                    nbPending = pending.size();
+                    break;
+                }
+            }
+        }
+        if (nbPending >= maxPending) {
+            requestFlush();
+        }
+        return oldNote;
+    }
+
+    /**
+     * @return les notes pas encore écrites en base d'un utilisateur, indexées par id de talk
+     */
+    public static Map<Long, Integer> pendingNotes(Long userId) {
+        Map<Long, Integer> notes = new HashMap<Long, Integer>();
+        synchronized (lock) {
+            if (pending.isEmpty() && inFlight.isEmpty()) {
+                return notes;
+            }
+            for (Entry entry : inFlight.values()) {
+                if (entry.userId.equals(userId)) {
+                    notes.put(entry.talkId, entry.note);
+                }
+            }
+            for (Entry entry : pending.values()) {
+                if (entry.userId.equals(userId)) {
+                    notes.put(entry.talkId, entry.note);
+                }
+            }
+        }
+        return notes;
+    }
+
+    /**
+     * Ecrit les votes en attente d'un utilisateur et refuse ses votes suivants, avant sa suppression.
+     * A terminer par {@link #release(Long)}.
+     */
+    public static void hold(Long userId) {
+        synchronized (lock) {
+            heldUsers.add(userId);
+        }
+        flush();
+    }
+
+    public static void release(Long userId) {
+        synchronized (lock) {
+            heldUsers.remove(userId);
+        }
+    }
+
+    /**
+     * Ecrit en base les votes en attente, en une transaction.
+     * En cas d'échec, les votes sont écrits un par un ; ceux qui échouent encore restent en attente
+     * pour l'écriture suivante, ou sont abandonnés après {@value #MAX_ATTEMPTS} échecs.
+     */
+    public static void flush() {
+        synchronized (flushLock) {
+            Map<Key, Entry> writing;
+            synchronized (lock) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                writing = pending;
+                inFlight = writing;
+                pending = new HashMap<Key, Entry>();
+            }
+            Map<Key, Entry> notWritten = writing;
+            Map<Key, Entry> dropped = new HashMap<Key, Entry>();
+            List<Entry> undone;
+            try {
+                try {
+                    write(writing.values());
+                    notWritten = Collections.emptyMap();
+                } catch (RuntimeException e) {
+                    Logger.warn("VoteJournal: échec de l'écriture de " + writing.size() + " vote(s), écriture vote par vote", e);
+                    notWritten = writeOneByOne(writing, dropped);
+                }
+            } finally {
+                synchronized (lock) {
+                    undone = restore(notWritten, dropped);
+                    inFlight = new HashMap<Key, Entry>();
+                    flushCount++;
+                }
+            }
+            // Hors du verrou du journal, que les votes prennent avant celui du décompte
+            for (Entry entry : undone) {
+                if (entry.storedNote == null) {
+                    VoteTally.unrecord(entry.talkId, entry.note);
+                } else {
+                    VoteTally.record(entry.talkId, entry.note, entry.storedNote);
+                }
+            }
+        }
+    }
+
+    /**
+     * Exécute une action pendant laquelle aucune autre écriture du journal ne peut avoir lieu.
+     * L'action peut appeler {@link #flush()}.
+     */
+    public static void runExclusive(Runnable action) {
+        synchronized (flushLock) {
+            action.run();
+        }
+    }
+
+    /**
+     * @param dropped reçoit les votes abandonnés
+     * @return les votes à réessayer
+     */
+    private static Map<Key, Entry> writeOneByOne(Map<Key, Entry> writing, Map<Key, Entry> dropped) {
+        Map<Key, Entry> notWritten = new HashMap<Key, Entry>();
+        for (Map.Entry<Key, Entry> keyAndEntry : writing.entrySet()) {
+            Entry entry = keyAndEntry.getValue();
+            try {
+                write(Collections.singletonList(entry));
+            } catch (RuntimeException e) {
+                entry.attempts++;
+                if (entry.attempts >= MAX_ATTEMPTS) {
+                    Logger.error("VoteJournal: vote abandonné après " + entry.attempts + " échecs (utilisateur "
+                            + entry.userId + ", talk " + entry.talkId + ", note " + entry.note + ")", e);
+                    dropped.put(keyAndEntry.getKey(), entry);
+                } else {
+                    notWritten.put(keyAndEntry.getKey(), entry);
+                }
+            }
+        }
+        return notWritten;
+    }
+
+    /**
+     * Remet en attente les votes à réessayer.
+     *
+     * @return les votes abandonnés à retirer du décompte, ceux sans vote plus récent en attente
+     */
+    private static List<Entry> restore(Map<Key, Entry> notWritten, Map<Key, Entry> dropped) {
+        for (Map.Entry<Key, Entry> entry : notWritten.entrySet()) {
+            Entry newer = pending.get(entry.getKey());
+            if (newer == null) {
+                pending.put(entry.getKey(), entry.getValue());
+            } else {
+                // Le vote plus récent supposait l'écriture réussie
+                newer.storedNote = entry.getValue().storedNote;
+            }
+        }
+        List<Entry> undone = new ArrayList<Entry>();
+        for (Map.Entry<Key, Entry> entry : dropped.entrySet()) {
+            Entry newer = pending.get(entry.getKey());
+            if (newer == null) {
+                undone.add(entry.getValue());
+            } else {
+                // Le décompte suit déjà le vote plus récent, qui part de la note en base
+                newer.storedNote = entry.getValue().storedNote;
+            }
+        }
+        return undone;
+    }
+
+    private static void write(Collection<Entry> entries) {
+        Set<Long> talkIds = new HashSet<Long>();
+        Transaction transaction = Ebean.beginTransaction();
+        try {
+            transaction.setBatchMode(true);
+            for (Entry entry : entries) {
+                if (entry.storedNote != null) {
+                    SqlUpdate update = Ebean.createSqlUpdate("update vote set note = :note"
+                            + " where user_id = :userId and talk_id = :talkId");
+                    update.setParameter("note", entry.note);
+                    update.setParameter("userId", entry.userId);
+                    update.setParameter("talkId", entry.talkId);
+                    update.execute();
+                } else {
+                    Vote vote = new Vote();
+                    vote.setUser(Ebean.getReference(User.class, entry.userId));
+                    vote.setTalk(Ebean.getReference(Talk.class, entry.talkId));
+                    vote.setNote(entry.note);
+                    Ebean.save(vote);
+                }
+                talkIds.add(entry.talkId);
+            }
+            // Les votes doivent être écrits avant le recalcul des statistiques
+            transaction.flushBatch();
+            transaction.setBatchMode(false);
+            VoteStats.rebuildForTalks(talkIds);
+            Ebean.commitTransaction();
+        } finally {
+            Ebean.endTransaction();
+        }
+        Logger.debug("VoteJournal: " + entries.size() + " vote(s) écrit(s)");
+    }
+
+    private static void requestFlush() {
+        if (!flushRequested.compareAndSet(false, true)) {
+            return;
+        }
+        Akka.system().scheduler().scheduleOnce(Duration.create(0, TimeUnit.MILLISECONDS), new Runnable() {
+            public void run() {
+                flushRequested.set(false);
+                flushQuietly();
+            }
+        });
+    }
+
+    private static void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            Logger.error("VoteJournal: erreur lors de l'écriture des votes", e);
+        }
+    }
+}
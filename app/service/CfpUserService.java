@@ -4,6 +4,8 @@ import java.util.*;
 
 import models.Credentials;
 import models.User;
+import models.UserToken;
+import models.utils.IdentityResolver;
 import play.Application;
 import play.Logger;
 import play.i18n.Messages;
@@ -26,10 +28,8 @@ import static play.libs.Json.toJson;
  */
 public class CfpUserService extends BaseUserService {
 
-    // TODO Eventuellement mettre les données Token en base (contient les hash pour créer les comptes locaux)
-    // Pour le CFP, le nombre de User ne devrait pas être très important => laisser en HashMap pour le moment
-//    private HashMap<String, Identity> users = new HashMap<String, Identity>();
-    private HashMap<String, Token> tokens = new HashMap<String, Token>();
+    /** Nombre de jetons expirés supprimés par requête */
+    private static final int EXPIRED_TOKENS_BATCH_SIZE = 500;
 
     public CfpUserService(Application application) {
         super(application);
@@ -38,8 +38,8 @@ public class CfpUserService extends BaseUserService {
     @Override
     public Identity doFind(UserId userId) {
         Logger.debug("doFind SecureSocial Find User by Id : " + userId.id() + " / " + userId.providerId());
-        // Recherche d'un user existant et création ou mise à jour des données en SGBD
-        User userCfp = User.findByExternalId(userId.id(), userId.providerId());
+        // Appelé à chaque requête authentifiée : on passe par le cache des utilisateurs connectés
+        User userCfp = IdentityResolver.findByExternalId(userId.id(), userId.providerId());
         Identity identity = null;
         if (userCfp!=null) {
             identity = userToIdentity(userCfp);
@@ -50,9 +50,11 @@ public class CfpUserService extends BaseUserService {
     @Override
     public void doSave(Identity socialUser) {
 
-        // Recherche d'un user existant et création ou mise à jour des données en SGBD
-        User userCfp = User.findByExternalId(socialUser.id().id(), socialUser.id().providerId());
-        Logger.debug("doSave " + socialUser.fullName() + " / socialUserId : " + socialUser.id().id() + " - " + socialUser.id().providerId());
+        // Recherche d'un user existant (en général déjà en cache après doFind) et création ou mise à jour des données en SGBD
+        String extUserId = socialUser.id().id();
+        String providerId = socialUser.id().providerId();
+        User userCfp = IdentityResolver.findByExternalId(extUserId, providerId);
+        Logger.debug("doSave " + socialUser.fullName() + " / socialUserId : " + extUserId + " - " + providerId);
         if (userCfp == null) {
             Logger.debug("Création du user : " + socialUser.fullName());
             userCfp = IdentityToUser(socialUser);
@@ -62,33 +64,35 @@ public class CfpUserService extends BaseUserService {
             }
 
 
-            userCfp.admin = false;
+            // Le premier utilisateur créé est admin
+            userCfp.admin = !User.exists();
             userCfp.dateCreation = new Date();
+            userCfp.save();
         } else {
-            Logger.debug("Mise à jour du user : " + socialUser.fullName());
-            userCfp.fullname = socialUser.fullName();
-            if (socialUser.avatarUrl().isDefined()) {
-                userCfp.avatar = socialUser.avatarUrl().get();
+            String avatar = socialUser.avatarUrl().isDefined() ? socialUser.avatarUrl().get() : userCfp.avatar;
+            if (!equals(socialUser.fullName(), userCfp.fullname) || !equals(avatar, userCfp.avatar)) {
+                Logger.debug("Mise à jour du user : " + socialUser.fullName());
+                userCfp.fullname = socialUser.fullName();
+                userCfp.avatar = avatar;
+                userCfp.save();
             }
         }
+    }
 
-        if(User.findAll().isEmpty()){
-            userCfp.admin = true;
-        }
-
-        userCfp.save();
+    private static boolean equals(String value1, String value2) {
+        return value1 == null ? value2 == null : value1.equals(value2);
     }
 
     /**
      * Deletes all expired tokens
      *
-     * Note: If you do not plan to use the UsernamePassword provider just
-     * provide en empty implementation
+     * Appelé périodiquement par SecureSocial (securesocial.userpass.tokenDeleteInterval).
      *
      */
     @Override
     public void doDeleteExpiredTokens() {
-        Logger.debug("doDeleteExpiredTokens SecureSocial");
+        int deleted = UserToken.deleteExpired(EXPIRED_TOKENS_BATCH_SIZE);
+        Logger.debug("doDeleteExpiredTokens SecureSocial : " + deleted + " jeton(s) supprimé(s)");
     }
 
     /**
@@ -102,6 +106,7 @@ public class CfpUserService extends BaseUserService {
     @Override
     public void doDeleteToken(String uuid) {
         Logger.debug("doDeleteToken SecureSocial : " + uuid);
+        UserToken.deleteByUuid(uuid);
     }
 
     /**
@@ -137,7 +142,8 @@ public class CfpUserService extends BaseUserService {
     @Override
     public Token doFindToken(String tokenId) {
         Logger.debug("doFindToken SecureSocial : " + tokenId);
-        return tokens.get(tokenId);
+        UserToken userToken = UserToken.find.byId(tokenId);
+        return userToken == null ? null : userToken.toToken();
     }
 
     /**
@@ -150,7 +156,7 @@ public class CfpUserService extends BaseUserService {
      */
     @Override
     public void doSave(Token token) {
-        tokens.put(token.uuid, token);
+        UserToken.fromToken(token).save();
         Logger.debug("doSave SecureSocial Token : " + token.getEmail() + " / " + token.getUuid());
     }
 
@@ -213,11 +219,12 @@ public class CfpUserService extends BaseUserService {
 
     /**
      * Convertit un objet User (modèle) en objet SocialUser/Identity
+     * (visible dans le package pour les benchmarks)
      *
      * @param user
      * @return
      */
-    private Identity userToIdentity(User user) {
+    Identity userToIdentity(User user) {
 
         UserId userId;
         String firstName = null;
@@ -0,0 +1,135 @@
+package service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import play.Logger;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.SqlRow;
+
+/**
+ * Index en mémoire des noms de tags, pour l'autocomplétion.
+ * <p/>
+ * Les noms sont gardés dans un tableau trié avec leur nombre d'utilisations : une recherche
+ * par préfixe est une recherche dichotomique suivie d'un parcours des seuls noms correspondants.
+ * Le tableau est recopié à chaque modification (rare) et jamais modifié en place,
+ * les lectures se font donc sans verrou.
+ */
+public class TagIndex {
+
+    /**
+     * Tag proposé à l'autocomplétion.
+     */
+    public static class Suggestion {
+        public String nom;
+        public int count;
+
+        Suggestion(String nom, int count) {
+            this.nom = nom;
+            this.count = count;
+        }
+    }
+
+    private static class Snapshot {
+        final String[] names;
+        final int[] counts;
+
+        Snapshot(String[] names, int[] counts) {
+            this.names = names;
+            this.counts = counts;
+        }
+    }
+
+    private static final Comparator<Suggestion> MOST_USED_FIRST = new Comparator<Suggestion>() {
+        public int compare(Suggestion suggestion1, Suggestion suggestion2) {
+            int result = suggestion2.count - suggestion1.count;
+            if (result == 0) {
+                result = suggestion1.nom.compareTo(suggestion2.nom);
+            }
+            return result;
+        }
+    };
+
+    private static volatile Snapshot snapshot = new Snapshot(new String[0], new int[0]);
+
+    /**
+     * Tags commençant par un préfixe, les plus utilisés en premier.
+     *
+     * @param prefix début du nom (insensible à la casse)
+     * @param max    nombre maximum de suggestions
+     * @return les suggestions
+     */
+    public static List<Suggestion> suggest(String prefix, int max) {
+        Snapshot current = snapshot;
+        String upperPrefix = prefix.toUpperCase();
+        int index = Arrays.binarySearch(current.names, upperPrefix);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        List<Suggestion> suggestions = new ArrayList<Suggestion>();
+        while (index < current.names.length && current.names[index].startsWith(upperPrefix)) {
+            suggestions.add(new Suggestion(current.names[index], current.counts[index]));
+            index++;
+        }
+        Collections.sort(suggestions, MOST_USED_FIRST);
+        return suggestions.size() > max ? suggestions.subList(0, max) : suggestions;
+    }
+
+    /**
+     * Ajoute un tag à l'index s'il n'y est pas, et fait varier son nombre d'utilisations.
+     *
+     * @param nom   nom du tag
+     * @param delta variation du nombre de talks portant ce tag
+     */
+    public static synchronized void addUsage(String nom, int delta) {
+        Snapshot current = snapshot;
+        int index = Arrays.binarySearch(current.names, nom);
+        if (index >= 0) {
+            int[] counts = current.counts.clone();
+            counts[index] = Math.max(0, counts[index] + delta);
+            snapshot = new Snapshot(current.names, counts);
+        } else {
+            int insertion = -index - 1;
+            int size = current.names.length;
+            String[] names = new String[size + 1];
+            int[] counts = new int[size + 1];
+            System.arraycopy(current.names, 0, names, 0, insertion);
+            System.arraycopy(current.counts, 0, counts, 0, insertion);
+            names[insertion] = nom;
+            counts[insertion] = Math.max(0, delta);
+            System.arraycopy(current.names, insertion, names, insertion + 1, size - insertion);
+            System.arraycopy(current.counts, insertion, counts, insertion + 1, size - insertion);
+            snapshot = new Snapshot(names, counts);
+        }
+    }
+
+    /**
+     * Reconstruit l'index à partir de la base.
+     */
+    public static synchronized void rebuild() {
+        String sql = "select tg.nom, count(tt.talk_id) as nb_talks from tag tg"
+                + " left join tag_talk tt on tt.tag_id = tg.id group by tg.nom";
+        // Tri en Java : l'ordre de tri de la base peut différer de celui de String.compareTo
+        SortedMap<String, Integer> countsByName = new TreeMap<String, Integer>();
+        for (SqlRow row : Ebean.createSqlQuery(sql).findList()) {
+            countsByName.put(row.getString("nom"), row.getInteger("nb_talks"));
+        }
+        String[] names = new String[countsByName.size()];
+        int[] counts = new int[countsByName.size()];
+        int index = 0;
+        for (Map.Entry<String, Integer> entry : countsByName.entrySet()) {
+            names[index] = entry.getKey();
+            counts[index] = entry.getValue();
+            index++;
+        }
+        snapshot = new Snapshot(names, counts);
+        Logger.info("Index des tags reconstruit : " + names.length + " tags");
+    }
+}
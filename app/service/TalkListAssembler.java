@@ -0,0 +1,188 @@
+package service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import models.Comment;
+import models.Creneau;
+import models.Tag;
+import models.Talk;
+import models.User;
+import models.Vote;
+import models.VoteStats;
+import models.VoteStatus;
+import models.VoteStatusEnum;
+import models.utils.SqlUtils;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.SqlRow;
+
+/**
+ * Assemble une liste de talks avec leurs votes, moyennes, commentaires, tags et créneaux,
+ * ainsi que les speakers et auteurs des commentaires (voir {@link UserListAssembler}).
+ * <p/>
+ * Toutes les données associées sont chargées en un nombre fixe de requêtes ensemblistes,
+ * quel que soit le nombre de talks, au lieu de quelques requêtes par talk : la sérialisation JSON
+ * des talks assemblés ne fait plus de lazy loading. Les talks doivent être lus avec leur speaker
+ * (voir {@link Talk#withSpeaker()}).
+ * Les tags et les créneaux sont lus dans leur cache (voir {@link models.utils.ReferenceCache}).
+ */
+public class TalkListAssembler {
+
+    private final User user;
+
+    private final boolean withVotes;
+
+    private final UserListAssembler userAssembler = new UserListAssembler();
+
+    /**
+     * @param user      utilisateur pour lequel les commentaires sont filtrés
+     * @param withVotes charge le vote de l'utilisateur (s'il est admin) et les moyennes si le vote est clos
+     */
+    public TalkListAssembler(User user, boolean withVotes) {
+        this.user = user;
+        this.withVotes = withVotes;
+    }
+
+    public List<Talk> assemble(List<Talk> talks) {
+        if (talks.isEmpty()) {
+            return talks;
+        }
+        Map<Long, Talk> talksById = new HashMap<Long, Talk>();
+        for (Talk talk : talks) {
+            talksById.put(talk.id, talk);
+        }
+        Set<Long> talkIds = talksById.keySet();
+
+        if (withVotes && user.admin) {
+            loadVotes(talks, talkIds);
+        }
+        List<Comment> comments = loadComments(talks, talkIds);
+        loadUsers(talks, comments);
+        loadTags(talksById, talkIds);
+        loadCreneaux(talksById, talkIds);
+
+        for (Talk talk : talks) {
+            talk.fiteredComments(user);
+        }
+        return talks;
+    }
+
+    private void loadVotes(List<Talk> talks, Set<Long> talkIds) {
+        Map<Long, Vote> votes = Vote.findVotesByUserAndTalks(user, talkIds);
+        Map<Long, VoteStats> stats = null;
+        if (VoteStatus.getVoteStatus() == VoteStatusEnum.CLOSED) {
+            stats = VoteTally.snapshots(talkIds);
+        }
+        for (Talk talk : talks) {
+            talk.vote = votes.get(talk.id);
+            if (stats != null) {
+                talk.setVoteStats(stats.get(talk.id));
+            }
+        }
+    }
+
+    private List<Comment> loadComments(List<Talk> talks, Set<Long> talkIds) {
+        List<Comment> comments = Comment.find.fetch("author").fetch("author.credentials")
+                .where().in("talk.id", talkIds).orderBy("id").findList();
+
+        Map<Long, List<Comment>> commentsByTalk = new HashMap<Long, List<Comment>>();
+        Map<Long, List<Comment>> reponsesByQuestion = new HashMap<Long, List<Comment>>();
+        for (Comment comment : comments) {
+            addTo(commentsByTalk, comment.talk.id, comment);
+            if (comment.question != null) {
+                addTo(reponsesByQuestion, comment.question.id, comment);
+            }
+        }
+        for (Comment comment : comments) {
+            List<Comment> reponses = reponsesByQuestion.get(comment.id);
+            comment.reponses = reponses == null ? new ArrayList<Comment>() : reponses;
+        }
+        for (Talk talk : talks) {
+            List<Comment> talkComments = commentsByTalk.get(talk.id);
+            talk.comments = talkComments == null ? new ArrayList<Comment>() : talkComments;
+        }
+        return comments;
+    }
+
+    private void loadUsers(List<Talk> talks, List<Comment> comments) {
+        List<User> users = new ArrayList<User>();
+        for (Talk talk : talks) {
+            if (talk.speaker != null) {
+                users.add(talk.speaker);
+            }
+        }
+        for (Comment comment : comments) {
+            if (comment.author != null) {
+                users.add(comment.author);
+            }
+        }
+        userAssembler.assemble(users);
+    }
+
+    private void loadTags(Map<Long, Talk> talksById, Set<Long> talkIds) {
+        Map<Long, List<Long>> tagIdsByTalk = findAssociations("tag_talk", "tag_id", talkIds);
+        Map<Long, Tag> tagsById = Tag.cache.getAll(allIds(tagIdsByTalk.values()));
+        for (Talk talk : talksById.values()) {
+            List<Tag> tags = new ArrayList<Tag>();
+            List<Long> ids = tagIdsByTalk.get(talk.id);
+            if (ids != null) {
+                for (Long id : ids) {
+                    tags.add(tagsById.get(id));
+                }
+            }
+            talk.tags = tags;
+        }
+    }
+
+    private void loadCreneaux(Map<Long, Talk> talksById, Set<Long> talkIds) {
+        Map<Long, List<Long>> creneauIdsByTalk = findAssociations("creneau_talk", "creneau_id", talkIds);
+        Map<Long, Creneau> creneauxById = Creneau.cache.getAll(allIds(creneauIdsByTalk.values()));
+        for (Talk talk : talksById.values()) {
+            List<Creneau> creneaux = new ArrayList<Creneau>();
+            List<Long> ids = creneauIdsByTalk.get(talk.id);
+            if (ids != null) {
+                for (Long id : ids) {
+                    creneaux.add(creneauxById.get(id));
+                }
+            }
+            talk.setCreneaux(creneaux);
+        }
+    }
+
+    /**
+     * Lit une table d'association many-to-many pour un ensemble de talks.
+     */
+    private Map<Long, List<Long>> findAssociations(String table, String column, Set<Long> talkIds) {
+        String sql = "select talk_id, " + column + " from " + table
+                + " where talk_id in (" + SqlUtils.joinIds(talkIds) + ") order by " + column;
+        List<SqlRow> rows = Ebean.createSqlQuery(sql).findList();
+        Map<Long, List<Long>> idsByTalk = new HashMap<Long, List<Long>>();
+        for (SqlRow row : rows) {
+            addTo(idsByTalk, row.getLong("talk_id"), row.getLong(column));
+        }
+        return idsByTalk;
+    }
+
+    private static Set<Long> allIds(Collection<List<Long>> lists) {
+        Set<Long> ids = new LinkedHashSet<Long>();
+        for (List<Long> list : lists) {
+            ids.addAll(list);
+        }
+        return ids;
+    }
+
+    private static <T> void addTo(Map<Long, List<T>> map, Long key, T value) {
+        List<T> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<T>();
+            map.put(key, list);
+        }
+        list.add(value);
+    }
+}
@@ -0,0 +1,114 @@
+package service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import models.Talk;
+import models.VoteStats;
+
+/**
+ * Classement des talks selon les votes, calculé à partir du décompte en mémoire.
+ * <p/>
+ * Seuls les K meilleurs talks sont conservés dans un tas borné : le coût est en
+ * O(n log K) et seuls les talks retenus sont lus en base.
+ */
+public class TalkRanking {
+
+    /**
+     * Ligne du classement, limitée aux champs utiles à la délibération.
+     */
+    public static class RankedTalk {
+        public int rang;
+        public Long id;
+        public String title;
+        public String speaker;
+        public String statusTalk;
+        public Double moyenne;
+        public Double ecartType;
+        public int nbVotes;
+    }
+
+    /**
+     * Ordre du classement : meilleure moyenne, puis plus de votes, puis écart-type le plus faible.
+     */
+    private static final Comparator<VoteStats> BEST_FIRST = new Comparator<VoteStats>() {
+        public int compare(VoteStats stats1, VoteStats stats2) {
+            int result = stats2.getMoyenne().compareTo(stats1.getMoyenne());
+            if (result == 0) {
+                result = stats2.nbVotes - stats1.nbVotes;
+            }
+            if (result == 0) {
+                result = stats1.getEcartType().compareTo(stats2.getEcartType());
+            }
+            if (result == 0) {
+                result = stats1.talkId.compareTo(stats2.talkId);
+            }
+            return result;
+        }
+    };
+
+    /**
+     * @param k            nombre de talks à classer
+     * @param candidateIds ids des talks à considérer, null pour tous les talks ayant des votes
+     * @return les k meilleurs talks, du premier au dernier
+     */
+    public static List<RankedTalk> top(int k, Collection<Long> candidateIds) {
+        if (candidateIds == null) {
+            candidateIds = VoteTally.talkIds();
+        }
+        // Tas dont la tête est le moins bon des talks retenus
+        PriorityQueue<VoteStats> heap = new PriorityQueue<VoteStats>(Math.min(k, candidateIds.size()) + 1,
+                Collections.reverseOrder(BEST_FIRST));
+        for (Long talkId : candidateIds) {
+            VoteStats stats = VoteTally.snapshot(talkId);
+            if (stats == null || stats.nbVotes == 0) {
+                continue;
+            }
+            if (heap.size() < k) {
+                heap.add(stats);
+            } else if (BEST_FIRST.compare(stats, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(stats);
+            }
+        }
+
+        List<VoteStats> best = new ArrayList<VoteStats>(heap);
+        Collections.sort(best, BEST_FIRST);
+        List<Long> ids = new ArrayList<Long>();
+        for (VoteStats stats : best) {
+            ids.add(stats.talkId);
+        }
+        Map<Long, Talk> talksById = new HashMap<Long, Talk>();
+        if (!ids.isEmpty()) {
+            for (Talk talk : Talk.find.select("id, title, statusTalk").fetch("speaker", "fullname")
+                    .where().in("id", ids).findList()) {
+                talksById.put(talk.id, talk);
+            }
+        }
+
+        List<RankedTalk> ranking = new ArrayList<RankedTalk>();
+        for (VoteStats stats : best) {
+            Talk talk = talksById.get(stats.talkId);
+            if (talk == null) {
+                continue;
+            }
+            RankedTalk ranked = new RankedTalk();
+            ranked.rang = ranking.size() + 1;
+            ranked.id = talk.id;
+            ranked.title = talk.title;
+            ranked.speaker = talk.speaker == null ? null : talk.speaker.fullname;
+            ranked.statusTalk = talk.statusTalk == null ? null : talk.statusTalk.name();
+            ranked.moyenne = stats.getMoyenne();
+            ranked.ecartType = stats.getEcartType();
+            ranked.nbVotes = stats.nbVotes;
+            ranking.add(ranked);
+        }
+        return ranking;
+    }
+}
@@ -0,0 +1,247 @@
+package service;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+import models.Tag;
+import models.Talk;
+import play.Logger;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.SqlRow;
+
+/**
+ * Index inversé en mémoire pour la recherche plein texte dans les talks.
+ * <p/>
+ * Sont indexés le titre (compté deux fois), la description, les tags et le nom du speaker.
+ * Les termes sont passés en minuscules et débarrassés de leurs accents, les mots vides
+ * français et anglais sont ignorés. Les résultats sont classés par BM25.
+ */
+public class TalkSearchIndex {
+
+    /**
+     * Résultat de recherche.
+     */
+    public static class Hit {
+        public Long id;
+        public double score;
+
+        Hit(Long id, double score) {
+            this.id = id;
+            this.score = score;
+        }
+    }
+
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final int TITLE_WEIGHT = 2;
+
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private static final Set<String> STOP_WORDS = new HashSet<String>(Arrays.asList(
+            "au", "aux", "avec", "ce", "ces", "dans", "de", "des", "du", "elle", "en", "et", "il", "je", "la", "le",
+            "les", "leur", "lui", "ma", "mais", "me", "mes", "ne", "nos", "notre", "nous", "on", "ou", "par", "pas",
+            "pour", "qu", "que", "qui", "sa", "se", "ses", "son", "sur", "ta", "te", "tes", "ton", "tu", "un", "une",
+            "vos", "votre", "vous", "est", "sont", "a", "l", "d", "c", "j", "n", "s", "t", "y",
+            "an", "and", "are", "as", "at", "be", "by", "for", "from", "in", "is", "it", "of", "on", "or", "the",
+            "to", "with"));
+
+    private static final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** terme -> (id du talk -> nombre d'occurrences) */
+    private static final Map<String, Map<Long, Integer>> postings = new HashMap<String, Map<Long, Integer>>();
+
+    /** id du talk -> termes distincts du talk, pour la désindexation */
+    private static final Map<Long, Set<String>> termsByTalk = new HashMap<Long, Set<String>>();
+
+    /** id du talk -> nombre de termes du talk */
+    private static final Map<Long, Integer> lengths = new HashMap<Long, Integer>();
+
+    private static long totalLength = 0;
+
+    /**
+     * Découpe un texte en termes normalisés (minuscules, sans accents, sans mots vides).
+     */
+    public static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<String>();
+        if (text == null) {
+            return terms;
+        }
+        String folded = DIACRITICS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("").toLowerCase();
+        for (String term : SEPARATORS.split(folded)) {
+            if (term.length() > 0 && !STOP_WORDS.contains(term)) {
+                terms.add(term);
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Indexe (ou réindexe) un talk.
+     */
+    public static void index(Talk talk) {
+        List<String> tagNames = new ArrayList<String>();
+        for (Tag tag : talk.getTags()) {
+            tagNames.add(tag.nom);
+        }
+        index(talk.id, talk.title, talk.description, tagNames, talk.speaker == null ? null : talk.speaker.fullname);
+    }
+
+    private static void index(Long talkId, String title, String description, Collection<String> tagNames, String speaker) {
+        List<String> terms = new ArrayList<String>();
+        for (int i = 0; i < TITLE_WEIGHT; i++) {
+            terms.addAll(tokenize(title));
+        }
+        terms.addAll(tokenize(description));
+        for (String tagName : tagNames) {
+            terms.addAll(tokenize(tagName));
+        }
+        terms.addAll(tokenize(speaker));
+
+        Map<String, Integer> frequencies = new HashMap<String, Integer>();
+        for (String term : terms) {
+            Integer frequency = frequencies.get(term);
+            frequencies.put(term, frequency == null ? 1 : frequency + 1);
+        }
+
+        lock.writeLock().lock();
+        try {
+            removeUnlocked(talkId);
+            for (Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+                Map<Long, Integer> posting = postings.get(entry.getKey());
+                if (posting == null) {
+                    posting = new HashMap<Long, Integer>();
+                    postings.put(entry.getKey(), posting);
+                }
+                posting.put(talkId, entry.getValue());
+            }
+            termsByTalk.put(talkId, frequencies.keySet());
+            lengths.put(talkId, terms.size());
+            totalLength += terms.size();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public static void remove(Long talkId) {
+        lock.writeLock().lock();
+        try {
+            removeUnlocked(talkId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static void removeUnlocked(Long talkId) {
+        Set<String> terms = termsByTalk.remove(talkId);
+        if (terms == null) {
+            return;
+        }
+        for (String term : terms) {
+            Map<Long, Integer> posting = postings.get(term);
+            posting.remove(talkId);
+            if (posting.isEmpty()) {
+                postings.remove(term);
+            }
+        }
+        totalLength -= lengths.remove(talkId);
+    }
+
+    /**
+     * Recherche les talks correspondant à une requête, classés par pertinence (BM25).
+     *
+     * @param query texte recherché
+     * @param max   nombre maximum de résultats
+     * @return les résultats, du plus pertinent au moins pertinent
+     */
+    public static List<Hit> search(String query, int max) {
+        Set<String> queryTerms = new HashSet<String>(tokenize(query));
+        Map<Long, Double> scores = new HashMap<Long, Double>();
+
+        lock.readLock().lock();
+        try {
+            int nbTalks = lengths.size();
+            if (nbTalks == 0) {
+                return new ArrayList<Hit>();
+            }
+            double averageLength = ((double) totalLength) / nbTalks;
+            for (String term : queryTerms) {
+                Map<Long, Integer> posting = postings.get(term);
+                if (posting == null) {
+                    continue;
+                }
+                double idf = Math.log(1 + (nbTalks - posting.size() + 0.5) / (posting.size() + 0.5));
+                for (Map.Entry<Long, Integer> entry : posting.entrySet()) {
+                    double frequency = entry.getValue();
+                    double length = lengths.get(entry.getKey());
+                    double score = idf * frequency * (K1 + 1)
+                            / (frequency + K1 * (1 - B + B * length / averageLength));
+                    Double previous = scores.get(entry.getKey());
+                    scores.put(entry.getKey(), previous == null ? score : previous + score);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        List<Hit> hits = new ArrayList<Hit>();
+        for (Map.Entry<Long, Double> entry : scores.entrySet()) {
+            hits.add(new Hit(entry.getKey(), entry.getValue()));
+        }
+        Collections.sort(hits, new Comparator<Hit>() {
+            public int compare(Hit hit1, Hit hit2) {
+                int result = Double.compare(hit2.score, hit1.score);
+                return result != 0 ? result : hit1.id.compareTo(hit2.id);
+            }
+        });
+        return hits.size() > max ? hits.subList(0, max) : hits;
+    }
+
+    /**
+     * Reconstruit l'index à partir de la base.
+     */
+    public static void rebuild() {
+        Map<Long, List<String>> tagNamesByTalk = new HashMap<Long, List<String>>();
+        String sql = "select tt.talk_id, tg.nom from tag_talk tt join tag tg on tg.id = tt.tag_id";
+        for (SqlRow row : Ebean.createSqlQuery(sql).findList()) {
+            Long talkId = row.getLong("talk_id");
+            List<String> tagNames = tagNamesByTalk.get(talkId);
+            if (tagNames == null) {
+                tagNames = new ArrayList<String>();
+                tagNamesByTalk.put(talkId, tagNames);
+            }
+            tagNames.add(row.getString("nom"));
+        }
+
+        List<Talk> talks = Talk.find.select("id, title, description").fetch("speaker", "fullname").findList();
+        lock.writeLock().lock();
+        try {
+            postings.clear();
+            termsByTalk.clear();
+            lengths.clear();
+            totalLength = 0;
+            for (Talk talk : talks) {
+                List<String> tagNames = tagNamesByTalk.get(talk.id);
+                index(talk.id, talk.title, talk.description,
+                        tagNames == null ? Collections.<String>emptyList() : tagNames,
+                        talk.speaker == null ? null : talk.speaker.fullname);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        Logger.info("Index de recherche reconstruit : " + talks.size() + " talks");
+    }
+}
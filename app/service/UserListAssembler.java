@@ -0,0 +1,94 @@
+package service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import models.DynamicField;
+import models.DynamicFieldJson;
+import models.DynamicFieldValue;
+import models.Lien;
+import models.User;
+import models.utils.SqlUtils;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.SqlRow;
+
+/**
+ * Assemble une liste d'utilisateurs avec leurs champs dynamiques et leurs liens.
+ * <p/>
+ * La liste des champs dynamiques est lue une seule fois (dans son cache), les valeurs et les liens de tous
+ * les utilisateurs en une requête chacun. Les utilisateurs doivent être lus avec leurs
+ * credentials (voir {@link User#findPage(Long, int)}). Un même utilisateur peut figurer plusieurs fois
+ * dans la liste, sous forme d'instances distinctes (speaker d'un talk et auteur d'un commentaire).
+ * Un même assembleur peut servir pour plusieurs pages d'utilisateurs.
+ */
+public class UserListAssembler {
+
+    private List<DynamicField> dynamicFields;
+
+    public List<User> assemble(List<User> users) {
+        if (users.isEmpty()) {
+            return users;
+        }
+        Set<Long> userIds = new LinkedHashSet<Long>();
+        for (User user : users) {
+            userIds.add(user.id);
+        }
+        loadDynamicFields(users, userIds);
+        loadLiens(users, userIds);
+        return users;
+    }
+
+    private void loadDynamicFields(List<User> users, Set<Long> userIds) {
+        if (dynamicFields == null) {
+            dynamicFields = DynamicField.cache.all();
+        }
+        Map<Long, Map<Long, DynamicFieldValue>> valuesByUser = new HashMap<Long, Map<Long, DynamicFieldValue>>();
+        if (!dynamicFields.isEmpty()) {
+            for (DynamicFieldValue value : DynamicFieldValue.find.where().in("user.id", userIds).findList()) {
+                Map<Long, DynamicFieldValue> userValues = valuesByUser.get(value.getUser().id);
+                if (userValues == null) {
+                    userValues = new HashMap<Long, DynamicFieldValue>();
+                    valuesByUser.put(value.getUser().id, userValues);
+                }
+                userValues.put(value.getDynamicField().getId(), value);
+            }
+        }
+        for (User user : users) {
+            Map<Long, DynamicFieldValue> userValues = valuesByUser.get(user.id);
+            List<DynamicFieldJson> jsonFields = new ArrayList<DynamicFieldJson>();
+            for (DynamicField field : dynamicFields) {
+                jsonFields.add(DynamicFieldJson.toDynamicFieldJson(field,
+                        userValues == null ? null : userValues.get(field.getId())));
+            }
+            user.setDynamicFieldsJson(jsonFields);
+        }
+    }
+
+    private void loadLiens(List<User> users, Set<Long> userIds) {
+        String sql = "select id, user_id, label, url from lien where user_id in ("
+                + SqlUtils.joinIds(userIds) + ") order by id";
+        Map<Long, List<Lien>> liensByUser = new HashMap<Long, List<Lien>>();
+        for (SqlRow row : Ebean.createSqlQuery(sql).findList()) {
+            Lien lien = new Lien();
+            lien.id = row.getLong("id");
+            lien.label = row.getString("label");
+            lien.url = row.getString("url");
+            Long userId = row.getLong("user_id");
+            List<Lien> liens = liensByUser.get(userId);
+            if (liens == null) {
+                liens = new ArrayList<Lien>();
+                liensByUser.put(userId, liens);
+            }
+            liens.add(lien);
+        }
+        for (User user : users) {
+            List<Lien> liens = liensByUser.get(user.id);
+            user.liens = liens == null ? new ArrayList<Lien>() : liens;
+        }
+    }
+}
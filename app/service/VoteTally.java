@@ -0,0 +1,182 @@
+package service;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import models.VoteStats;
+import models.utils.VoteJournal;
+import play.Logger;
+
+/**
+ * Décompte en mémoire des votes par talk.
+ * <p/>
+ * Chaque talk possède un histogramme des notes 1 à 5 mis à jour par compteurs atomiques :
+ * les lectures de résultats ne prennent aucun verrou et ne touchent pas la base,
+ * les votes concurrents ne se bloquent pas entre eux.
+ * Le décompte est chargé depuis les statistiques persistées (table vote_stats) au démarrage de l'application.
+ * <p/>
+ * Un rechargement remplace tout le décompte d'un coup. Il est exclusif avec les votes, qui partagent
+ * {@link #voteLock()} de leur écriture en base à leur prise en compte ici : un vote est soit lu
+ * par le rechargement, soit compté dans le nouveau décompte, jamais perdu ni compté deux fois.
+ */
+public class VoteTally {
+
+    private static volatile ConcurrentMap<Long, AtomicIntegerArray> histograms = new ConcurrentHashMap<Long, AtomicIntegerArray>();
+
+    private static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Verrou à prendre autour de l'écriture d'un vote en base et de sa prise en compte par {@link #record}.
+     * Partagé entre les votes, il ne bloque que pendant un rechargement.
+     */
+    public static Lock voteLock() {
+        return lock.readLock();
+    }
+
+    private static AtomicIntegerArray histogram(Long talkId) {
+        AtomicIntegerArray histogram = histograms.get(talkId);
+        if (histogram == null) {
+            AtomicIntegerArray newHistogram = new AtomicIntegerArray(VoteStats.NOTE_MAX);
+            histogram = histograms.putIfAbsent(talkId, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Prend en compte un vote.
+     *
+     * @param talkId  id du talk
+     * @param oldNote ancienne note de l'utilisateur, null s'il s'agit d'un nouveau vote
+     * @param newNote nouvelle note
+     */
+    public static void record(Long talkId, Integer oldNote, int newNote) {
+        lock.readLock().lock();
+        try {
+            AtomicIntegerArray histogram = histogram(talkId);
+            histogram.incrementAndGet(newNote - 1);
+            if (oldNote != null) {
+                histogram.decrementAndGet(oldNote - 1);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Retire un vote supprimé du décompte.
+     */
+    public static void unrecord(Long talkId, int note) {
+        lock.readLock().lock();
+        try {
+            AtomicIntegerArray histogram = histograms.get(talkId);
+            if (histogram != null) {
+                histogram.decrementAndGet(note - 1);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return ids des talks ayant au moins un vote enregistré
+     */
+    public static Set<Long> talkIds() {
+        return new HashSet<Long>(histograms.keySet());
+    }
+
+    public static void remove(Long talkId) {
+        lock.readLock().lock();
+        try {
+            histograms.remove(talkId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Statistiques courantes d'un talk, sous forme d'un VoteStats non persisté.
+     */
+    public static VoteStats snapshot(Long talkId) {
+        AtomicIntegerArray histogram = histograms.get(talkId);
+        if (histogram == null) {
+            return null;
+        }
+        VoteStats stats = new VoteStats();
+        stats.talkId = talkId;
+        int[] repartition = new int[VoteStats.NOTE_MAX];
+        for (int i = 0; i < repartition.length; i++) {
+            int count = histogram.get(i);
+            int note = i + 1;
+            repartition[i] = count;
+            stats.nbVotes += count;
+            stats.sumNotes += (long) count * note;
+            stats.sumSquares += (long) count * note * note;
+        }
+        stats.note1 = repartition[0];
+        stats.note2 = repartition[1];
+        stats.note3 = repartition[2];
+        stats.note4 = repartition[3];
+        stats.note5 = repartition[4];
+        return stats;
+    }
+
+    public static Map<Long, VoteStats> snapshots(Collection<Long> talkIds) {
+        Map<Long, VoteStats> snapshots = new HashMap<Long, VoteStats>();
+        for (Long talkId : talkIds) {
+            VoteStats stats = snapshot(talkId);
+            if (stats != null) {
+                snapshots.put(talkId, stats);
+            }
+        }
+        return snapshots;
+    }
+
+    /**
+     * Recharge le décompte depuis les statistiques persistées.
+     */
+    public static void rebuild() {
+        reload(false);
+    }
+
+    /**
+     * Recalcule les statistiques persistées à partir de la table des votes, puis recharge le décompte.
+     */
+    public static void rebuildFromVotes() {
+        reload(true);
+    }
+
+    private static void reload(final boolean fromVotes) {
+        // Le journal est écrit avant la prise du verrou exclusif : son écriture peut elle-même compter des votes
+        VoteJournal.runExclusive(new Runnable() {
+            public void run() {
+                lock.writeLock().lock();
+                try {
+                    // Votes mis en attente avant la prise du verrou
+                    VoteJournal.flush();
+                    if (fromVotes) {
+                        VoteStats.rebuild();
+                    }
+                    ConcurrentMap<Long, AtomicIntegerArray> loaded = new ConcurrentHashMap<Long, AtomicIntegerArray>();
+                    for (VoteStats stats : VoteStats.find.all()) {
+                        loaded.put(stats.talkId, new AtomicIntegerArray(stats.getRepartition()));
+                    }
+                    histograms = loaded;
+                    Logger.info("Décompte des votes rechargé pour " + loaded.size() + " talks");
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        });
+    }
+}
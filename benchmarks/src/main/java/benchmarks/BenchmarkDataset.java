@@ -0,0 +1,142 @@
+package benchmarks;
+
+import static play.test.Helpers.fakeApplication;
+import static play.test.Helpers.inMemoryDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import models.Comment;
+import models.Talk;
+import models.User;
+import models.Vote;
+import models.utils.NotificationSubscriptions;
+import play.Play;
+import play.test.FakeApplication;
+import play.test.Helpers;
+import scala.Option;
+import securesocial.core.AuthenticationMethod;
+import securesocial.core.OAuth1Info;
+import securesocial.core.OAuth2Info;
+import securesocial.core.PasswordInfo;
+import securesocial.core.SocialUser;
+import securesocial.core.UserId;
+import service.CfpUserService;
+import service.VoteTally;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.Transaction;
+
+/**
+ * Jeu de données des benchmarks, dans une base H2 en mémoire propre à une application démarrée pour l'occasion.
+ * <p/>
+ * Pour nbTalks talks : un speaker par talk, NB_ADMINS admins, et sur chaque talk une question publique
+ * et une question privée d'un admin, une réponse du speaker et un vote de chaque admin.
+ * Les utilisateurs sont créés comme à la connexion OAuth, avec leurs credentials.
+ */
+public class BenchmarkDataset {
+
+    public static final int NB_ADMINS = 10;
+
+    private static final int BATCH_SIZE = 500;
+
+    public final List<User> admins = new ArrayList<User>();
+
+    public final List<User> speakers = new ArrayList<User>();
+
+    public final List<Long> talkIds = new ArrayList<Long>();
+
+    private final FakeApplication application;
+
+    private BenchmarkDataset(FakeApplication application) {
+        this.application = application;
+    }
+
+    /**
+     * Démarre une application sur une base vide et y crée le jeu de données.
+     */
+    public static BenchmarkDataset start(int nbTalks) {
+        FakeApplication application = fakeApplication(inMemoryDatabase());
+        Helpers.start(application);
+        BenchmarkDataset dataset = new BenchmarkDataset(application);
+        dataset.seed(nbTalks);
+        return dataset;
+    }
+
+    public void stop() {
+        Helpers.stop(application);
+    }
+
+    private void seed(int nbTalks) {
+        CfpUserService userService = new CfpUserService(Play.application());
+        List<Long> adminIds = new ArrayList<Long>();
+        for (int i = 0; i < NB_ADMINS; i++) {
+            User admin = createUser(userService, "admin" + i);
+            adminIds.add(admin.id);
+            admins.add(admin);
+        }
+        User.updateAdmin(adminIds, true);
+        for (User admin : admins) {
+            admin.admin = true;
+        }
+        for (int i = 0; i < nbTalks; i++) {
+            speakers.add(createUser(userService, "speaker" + i));
+        }
+
+        Transaction transaction = Ebean.beginTransaction();
+        try {
+            transaction.setBatchMode(true);
+            transaction.setBatchSize(BATCH_SIZE);
+            for (int i = 0; i < nbTalks; i++) {
+                createTalk(i, speakers.get(i));
+            }
+            Ebean.commitTransaction();
+        } finally {
+            Ebean.endTransaction();
+        }
+
+        VoteTally.rebuildFromVotes();
+        NotificationSubscriptions.rebuild();
+    }
+
+    private void createTalk(int index, User speaker) {
+        Talk talk = new Talk();
+        talk.title = "Talk " + index;
+        talk.description = "Description du talk " + index + " : performances, persistance et sérialisation JSON.";
+        talk.speaker = speaker;
+        talk.save();
+        talkIds.add(talk.id);
+
+        User admin = admins.get(index % NB_ADMINS);
+        Comment question = createComment(talk, admin, "Pourriez-vous préciser le plan ?", null, false);
+        createComment(talk, speaker, "Bien sûr, le voici.", question, false);
+        createComment(talk, admin, "Avis réservé aux admins", null, true);
+
+        for (int i = 0; i < NB_ADMINS; i++) {
+            Vote vote = new Vote();
+            vote.setUser(admins.get(i));
+            vote.setTalk(talk);
+            vote.setNote(1 + (index + i) % 5);
+            vote.save();
+        }
+    }
+
+    private static Comment createComment(Talk talk, User author, String text, Comment question, boolean privateComment) {
+        Comment comment = new Comment();
+        comment.talk = talk;
+        comment.author = author;
+        comment.comment = text;
+        comment.question = question;
+        comment.privateComment = privateComment;
+        comment.save();
+        return comment;
+    }
+
+    private static User createUser(CfpUserService userService, String name) {
+        userService.doSave(new SocialUser(new UserId(name, "twitter"), name, name, name + " " + name,
+                Option.apply(name + "@breizhcamp.org"), Option.<String>apply(null), new AuthenticationMethod("oauth1"),
+                Option.apply(new OAuth1Info("token", "secret")), Option.<OAuth2Info>apply(null),
+                Option.<PasswordInfo>apply(null)));
+        return User.findByExternalId(name, "twitter");
+    }
+}
@@ -0,0 +1,43 @@
+package benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import models.utils.NotificationSubscriptions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Calcul des destinataires de la notification d'un nouveau commentaire, comme dans Comment.sendMail :
+ * commentaire d'un admin (le speaker est notifié) et réponse du speaker (les admins sont notifiés).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CommentRecipientsBenchmark extends DatasetState {
+
+    private int next;
+
+    private int nextIndex() {
+        next = (next + 1) % dataset.talkIds.size();
+        return next;
+    }
+
+    @Benchmark
+    public List<NotificationSubscriptions.Subscriber> commentByAdmin() {
+        int index = nextIndex();
+        Long authorId = dataset.admins.get(index % BenchmarkDataset.NB_ADMINS).id;
+        return NotificationSubscriptions.recipients(dataset.talkIds.get(index), authorId, false);
+    }
+
+    @Benchmark
+    public List<NotificationSubscriptions.Subscriber> reponseBySpeaker() {
+        int index = nextIndex();
+        return NotificationSubscriptions.recipients(dataset.talkIds.get(index), dataset.speakers.get(index).id, false);
+    }
+}
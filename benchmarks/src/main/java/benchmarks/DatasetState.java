@@ -0,0 +1,38 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Etat commun des benchmarks qui ont besoin d'une base : un jeu de données par taille,
+ * créé avant les itérations et détruit à la fin.
+ */
+@State(Scope.Benchmark)
+public abstract class DatasetState {
+
+    @Param({"100", "1000", "5000"})
+    public int nbTalks;
+
+    protected BenchmarkDataset dataset;
+
+    @Setup(Level.Trial)
+    public void startDataset() {
+        dataset = BenchmarkDataset.start(nbTalks);
+        prepare();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopDataset() {
+        dataset.stop();
+    }
+
+    /**
+     * Prépare les données propres au benchmark, une fois le jeu de données créé.
+     */
+    protected void prepare() {
+    }
+}
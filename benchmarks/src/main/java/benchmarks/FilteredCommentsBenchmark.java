@@ -0,0 +1,52 @@
+package benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import models.Talk;
+import models.User;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import service.TalkListAssembler;
+
+/**
+ * Filtrage des commentaires de tous les talks ({@link Talk#fiteredComments(User)}),
+ * pour un admin et pour un speaker (sans les commentaires privés).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FilteredCommentsBenchmark extends DatasetState {
+
+    private List<Talk> talks;
+
+    @Override
+    protected void prepare() {
+        // Commentaires chargés une fois pour toutes : on ne mesure que le filtrage
+        talks = new TalkListAssembler(dataset.admins.get(0), false).assemble(Talk.withSpeaker().orderBy("id").findList());
+    }
+
+    @Benchmark
+    public void admin(Blackhole blackhole) {
+        filter(dataset.admins.get(0), blackhole);
+    }
+
+    @Benchmark
+    public void speaker(Blackhole blackhole) {
+        filter(dataset.speakers.get(0), blackhole);
+    }
+
+    private void filter(User user, Blackhole blackhole) {
+        for (Talk talk : talks) {
+            talk.fiteredComments(user);
+            blackhole.consume(talk.getCommentsFiltered());
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import models.utils.AppException;
+import models.utils.Hash;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Coût du hachage et de la vérification d'un mot de passe (BCrypt), sans base.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HashBenchmark {
+
+    private static final String PASSWORD = "breizhcamp-2013";
+
+    private String encryptedPassword;
+
+    @Setup(Level.Trial)
+    public void hashPassword() throws AppException {
+        encryptedPassword = Hash.createPassword(PASSWORD);
+    }
+
+    @Benchmark
+    public String createPassword() throws AppException {
+        return Hash.createPassword(PASSWORD);
+    }
+
+    @Benchmark
+    public boolean checkPassword() {
+        return Hash.checkPassword(PASSWORD, encryptedPassword);
+    }
+}
@@ -0,0 +1,52 @@
+package benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import models.Talk;
+import models.User;
+
+import org.codehaus.jackson.JsonNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import play.libs.Json;
+import service.TalkListAssembler;
+
+/**
+ * Sérialisation JSON de la liste des talks, telle que renvoyée par /talk/all :
+ * sérialisation seule d'une liste déjà assemblée, puis chargement et sérialisation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TalkJsonBenchmark extends DatasetState {
+
+    private User admin;
+
+    private List<Talk> talks;
+
+    @Override
+    protected void prepare() {
+        admin = dataset.admins.get(0);
+        talks = assemble();
+    }
+
+    private List<Talk> assemble() {
+        return new TalkListAssembler(admin, true).assemble(Talk.withSpeaker().orderBy("id").findList());
+    }
+
+    @Benchmark
+    public JsonNode toJson() {
+        return Json.toJson(talks);
+    }
+
+    @Benchmark
+    public JsonNode assembleAndToJson() {
+        return Json.toJson(assemble());
+    }
+}
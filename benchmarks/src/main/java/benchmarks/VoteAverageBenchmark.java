@@ -0,0 +1,70 @@
+package benchmarks;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import models.Talk;
+import models.Vote;
+import models.VoteStats;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import service.VoteTally;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.SqlRow;
+
+/**
+ * Moyenne des votes de tous les talks : une requête par talk ({@link Vote#calculMoyenne(Talk)}),
+ * une requête d'agrégat, les statistiques persistées et le décompte en mémoire.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class VoteAverageBenchmark extends DatasetState {
+
+    private List<Talk> talks;
+
+    @Override
+    protected void prepare() {
+        talks = Talk.find.orderBy("id").findList();
+    }
+
+    @Benchmark
+    public void calculMoyenne(Blackhole blackhole) {
+        for (Talk talk : talks) {
+            blackhole.consume(Vote.calculMoyenne(talk));
+        }
+    }
+
+    @Benchmark
+    public void aggregateQuery(Blackhole blackhole) {
+        for (SqlRow row : Ebean.createSqlQuery("select talk_id, avg(note) as moyenne from vote"
+                + " where talk_id is not null group by talk_id").findList()) {
+            blackhole.consume(row.getDouble("moyenne"));
+        }
+    }
+
+    @Benchmark
+    public void voteStats(Blackhole blackhole) {
+        Map<Long, VoteStats> stats = VoteStats.findByTalks(dataset.talkIds);
+        for (VoteStats talkStats : stats.values()) {
+            blackhole.consume(talkStats.getMoyenne());
+        }
+    }
+
+    @Benchmark
+    public void voteTally(Blackhole blackhole) {
+        Map<Long, VoteStats> stats = VoteTally.snapshots(dataset.talkIds);
+        for (VoteStats talkStats : stats.values()) {
+            blackhole.consume(talkStats.getMoyenne());
+        }
+    }
+}
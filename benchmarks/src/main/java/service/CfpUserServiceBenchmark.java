@@ -0,0 +1,73 @@
+package service;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import models.User;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import play.Play;
+import securesocial.core.Identity;
+import securesocial.core.UserId;
+import benchmarks.DatasetState;
+
+/**
+ * Conversion d'un utilisateur en Identity SecureSocial, faite à chaque requête authentifiée (doFind),
+ * et connexion OAuth d'un utilisateur existant (doFind / doSave / doFind) par 50 threads.
+ * Dans le package service pour accéder à {@link CfpUserService#userToIdentity(User)}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CfpUserServiceBenchmark extends DatasetState {
+
+    private CfpUserService userService;
+
+    private List<User> users;
+
+    private int next;
+
+    private final AtomicInteger nextLogin = new AtomicInteger();
+
+    @Override
+    protected void prepare() {
+        userService = new CfpUserService(Play.application());
+        users = User.find.fetch("credentials").orderBy("id").findList();
+    }
+
+    @Benchmark
+    public Identity userToIdentity() {
+        next = (next + 1) % users.size();
+        return userService.userToIdentity(users.get(next));
+    }
+
+    @Benchmark
+    public Identity doFind() {
+        next = (next + 1) % users.size();
+        User user = users.get(next);
+        return userService.doFind(new UserId(user.credentials.extUserId, user.credentials.providerId));
+    }
+
+    /**
+     * Latences (p50, p99...) d'une connexion sous un afflux de connexions simultanées.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Threads(50)
+    public Identity login() {
+        User user = users.get(Math.abs(nextLogin.incrementAndGet() % users.size()));
+        UserId userId = new UserId(user.credentials.extUserId, user.credentials.providerId);
+        Identity identity = userService.doFind(userId);
+        userService.doSave(identity);
+        return userService.doFind(userId);
+    }
+}
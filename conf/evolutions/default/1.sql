@@ -1,5 +1,4 @@
-# --- Created by Ebean DDL
-# To stop Ebean DDL generation, remove this comment and start using Evolutions
+# --- Schéma initial
 
 # --- !Ups
 
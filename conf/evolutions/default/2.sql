@@ -0,0 +1,31 @@
+# --- Statistiques de votes par talk
+
+# --- !Ups
+
+create table vote_stats (
+  talk_id                   bigint not null,
+  nb_votes                  integer not null,
+  sum_notes                 bigint not null,
+  sum_squares               bigint not null,
+  note1                     integer not null,
+  note2                     integer not null,
+  note3                     integer not null,
+  note4                     integer not null,
+  note5                     integer not null,
+  constraint pk_vote_stats primary key (talk_id))
+;
+
+alter table vote_stats add constraint fk_vote_stats_talk_1 foreign key (talk_id) references talk (id) on delete restrict on update restrict;
+
+insert into vote_stats (talk_id, nb_votes, sum_notes, sum_squares, note1, note2, note3, note4, note5)
+select talk_id, count(*), sum(note), sum(note * note),
+  sum(case when note = 1 then 1 else 0 end),
+  sum(case when note = 2 then 1 else 0 end),
+  sum(case when note = 3 then 1 else 0 end),
+  sum(case when note = 4 then 1 else 0 end),
+  sum(case when note = 5 then 1 else 0 end)
+from vote where talk_id is not null and note is not null group by talk_id;
+
+# --- !Downs
+
+drop table if exists vote_stats;
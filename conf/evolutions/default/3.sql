@@ -0,0 +1,15 @@
+# --- Index pour la liste paginée et filtrée des talks
+
+# --- !Ups
+
+create index ix_talk_status_talk on talk (status_talk);
+create index ix_tag_talk_talk on tag_talk (talk_id);
+create index ix_creneau_talk_talk on creneau_talk (talk_id);
+create index ix_vote_user_talk on vote (user_id, talk_id);
+
+# --- !Downs
+
+drop index if exists ix_talk_status_talk;
+drop index if exists ix_tag_talk_talk;
+drop index if exists ix_creneau_talk_talk;
+drop index if exists ix_vote_user_talk;
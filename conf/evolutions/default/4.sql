@@ -0,0 +1,27 @@
+# --- Mails en attente d'envoi (écrits dans la même transaction que le commentaire ou le changement de statut)
+
+# --- !Ups
+
+create table mail_outbox (
+  id                        bigint not null,
+  subject                   varchar(255),
+  message                   clob,
+  recipients                varchar(4000),
+  created_at                timestamp,
+  attempts                  integer not null,
+  claim_token               varchar(40),
+  claimed_at                timestamp,
+  sent_at                   timestamp,
+  last_error                varchar(255),
+  constraint pk_mail_outbox primary key (id))
+;
+
+create sequence mail_outbox_seq;
+
+create index ix_mail_outbox_pending on mail_outbox (sent_at, id);
+
+# --- !Downs
+
+drop table if exists mail_outbox;
+
+drop sequence if exists mail_outbox_seq;
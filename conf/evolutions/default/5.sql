@@ -0,0 +1,29 @@
+# --- Notifications de commentaires regroupées en un mail périodique
+
+# --- !Ups
+
+alter table user add column notif_digest boolean;
+
+create table pending_notification (
+  id                        bigint not null,
+  user_id                   bigint,
+  talk_id                   bigint,
+  talk_title                varchar(255),
+  author_name               varchar(255),
+  comment                   varchar(140),
+  created_at                timestamp,
+  constraint pk_pending_notification primary key (id))
+;
+
+create sequence pending_notification_seq;
+
+alter table pending_notification add constraint fk_pending_notification_user_1 foreign key (user_id) references user (id) on delete restrict on update restrict;
+create index ix_pending_notification_user_1 on pending_notification (user_id);
+
+# --- !Downs
+
+drop table if exists pending_notification;
+
+drop sequence if exists pending_notification_seq;
+
+alter table user drop column notif_digest;
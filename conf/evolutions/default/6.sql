@@ -0,0 +1,18 @@
+# --- Jetons d'inscription et de réinitialisation de mot de passe (SecureSocial)
+
+# --- !Ups
+
+create table user_token (
+  uuid                      varchar(36) not null,
+  email                     varchar(255),
+  creation_time             timestamp,
+  expiration_time           timestamp,
+  sign_up                   boolean,
+  constraint pk_user_token primary key (uuid))
+;
+
+create index ix_user_token_expiration on user_token (expiration_time);
+
+# --- !Downs
+
+drop table if exists user_token;
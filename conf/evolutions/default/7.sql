@@ -0,0 +1,9 @@
+# --- Index pour retrouver un utilisateur à partir de son identité SecureSocial à chaque connexion
+
+# --- !Ups
+
+create index ix_credentials_ext_user on credentials (ext_user_id, provider_id);
+
+# --- !Downs
+
+drop index if exists ix_credentials_ext_user;
@@ -28,6 +28,26 @@ object ApplicationBuild extends Build {
         resolvers += Resolver.url("SecureSocial Repository", url("http://securesocial.ws/repository/releases/"))(Resolver.ivyStylePatterns)
       )
 
+    val jmhVersion = "1.0"
+
+    // Benchmarks JMH : sbt "project benchmarks" "run -rf json -rff target/jmh-result.json"
+    lazy val benchmarks = Project("benchmarks", file("benchmarks"))
+      .dependsOn(main)
+      .settings(
+        scalaVersion := "2.9.1",
+        resolvers += "Typesafe Repository" at "http://repo.typesafe.com/typesafe/releases/",
+        resolvers += Resolver.url("SecureSocial Repository", url("http://securesocial.ws/repository/releases/"))(Resolver.ivyStylePatterns),
+        libraryDependencies ++= Seq(
+          "play" %% "play-test" % "2.0.4",
+          "org.openjdk.jmh" % "jmh-core" % jmhVersion,
+          "org.openjdk.jmh" % "jmh-generator-annprocess" % jmhVersion
+        ),
+        mainClass in (Compile, run) := Some("org.openjdk.jmh.Main"),
+        fork in run := true,
+        // L'application de test lit conf/ depuis le répertoire courant
+        baseDirectory in run <<= baseDirectory in main
+      )
+
     object Tasks {
 
         val generateAPIDocsTask = TaskKey[Unit]("app-doc") <<= (fullClasspath in Test, compilers, streams) map { (classpath, cs, s) => 
@@ -249,7 +249,18 @@ function ListTalksController($scope, $log, AllTalkService, VoteService) {
 
     $scope.checkloc(true);
 
-    $scope.talks = AllTalkService.query();
+    $scope.talks = [];
+
+    // Chargement de la grille page par page
+    var loadPage = function(after) {
+        AllTalkService.page({after: after, size: 50}, function(page) {
+            $scope.talks = $scope.talks.concat(page.talks);
+            if (page.next != null) {
+                loadPage(page.next);
+            }
+        });
+    };
+    loadPage(null);
 
     $scope.vote = VoteService.getVote();
 
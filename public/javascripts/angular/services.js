@@ -157,7 +157,38 @@ Services.factory('TalkService', function($resource) {
 });
 
 Services.factory('AllTalkService', function($resource) {
-    return $resource('/talk/all', {});
+    function AllTalkService($resource) {
+        var allTalks = $resource('/talk/all', {});
+        var pages = $resource('/talk/page', {});
+
+        this.query = function() {
+            return allTalks.query();
+        };
+
+        // Page de talks : params = {after, size, status, tag, creneau, speaker, notVoted}
+        // La réponse contient les talks et le curseur "next" de la page suivante (null pour la dernière).
+        this.page = function(params, callback) {
+            return pages.get(params, callback);
+        };
+
+        // Classement des talks une fois le vote clos : params = {k, creneau, tag}
+        this.ranking = function(params) {
+            return $resource('/talk/ranking', {}).query(params);
+        };
+    }
+
+    return new AllTalkService($resource);
+});
+
+Services.factory('TagService', function($resource) {
+    function TagService($resource) {
+        // Tags existants commençant par prefix, avec leur nombre d'utilisations
+        this.suggest = function(prefix) {
+            return $resource('/tag/suggest', {}).query({q: prefix});
+        };
+    }
+
+    return new TagService($resource);
 });
 
 Services.factory('CreneauxService', function($resource) {
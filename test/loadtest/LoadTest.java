@@ -0,0 +1,356 @@
+package loadtest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import models.Creneau;
+import models.Talk;
+import models.User;
+import models.VoteStatus;
+import models.VoteStatusEnum;
+import models.utils.IdentityResolver;
+import models.utils.NotificationSubscriptions;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import play.Play;
+import play.libs.Crypto;
+import play.libs.Json;
+import play.test.Helpers;
+import play.test.TestServer;
+import securesocial.core.java.SecureSocial;
+
+/**
+ * Test de charge HTTP reproductible, du type "soir de clôture du CFP".
+ * <p/>
+ * Démarre l'application sur une base H2 en mémoire et sans envoi de mails, crée des admins, des speakers et leurs talks,
+ * puis rejoue pendant une durée donnée un mélange de requêtes avec des utilisateurs authentifiés
+ * sans OAuth (voir {@link LoadTestUserService}). Affiche pour chaque route le débit, les latences
+ * p50/p99/p999 et le taux d'erreur, et les enregistre en JSON pour comparer les exécutions.
+ * <p/>
+ * Lancement : play -Dloadtest.scenario=vote "test:run-main loadtest.LoadTest"
+ * <p/>
+ * Paramètres (propriétés système) :
+ * <ul>
+ * <li>loadtest.scenario : closing (dépôt des talks, par défaut) ou vote (vote ouvert)</li>
+ * <li>loadtest.mix : mélange des routes, par exemple "talk:30,talkAll:10,postTalk:15,comment:15,vote:0,userLogged:30"</li>
+ * <li>loadtest.duration, loadtest.warmup : durée mesurée et durée de chauffe, en secondes (60 et 10)</li>
+ * <li>loadtest.concurrency : nombre d'utilisateurs simultanés (50)</li>
+ * <li>loadtest.speakers, loadtest.admins : taille du jeu de données (500 et 10)</li>
+ * <li>loadtest.seed : graine du tirage des requêtes (42)</li>
+ * <li>loadtest.port : port HTTP de l'application (19001)</li>
+ * <li>loadtest.output : répertoire des résultats (target/loadtest)</li>
+ * <li>loadtest.baseline : résultats d'une exécution précédente à comparer</li>
+ * </ul>
+ */
+public class LoadTest {
+
+    enum Route {
+        TALK("talk", "GET /talk"),
+        TALK_ALL("talkAll", "GET /talk/all"),
+        POST_TALK("postTalk", "POST /talk"),
+        COMMENT("comment", "POST /talks/:id/comment"),
+        VOTE("vote", "POST /talks/:id/vote/:note"),
+        USER_LOGGED("userLogged", "GET /userLogged");
+
+        final String key;
+        final String label;
+
+        Route(String key, String label) {
+            this.key = key;
+            this.label = label;
+        }
+
+        static Route fromKey(String key) {
+            for (Route route : values()) {
+                if (route.key.equals(key)) {
+                    return route;
+                }
+            }
+            throw new IllegalArgumentException("Route inconnue dans loadtest.mix : " + key);
+        }
+    }
+
+    private static final String CLOSING_MIX = "talk:30,talkAll:10,postTalk:15,comment:15,userLogged:30";
+
+    private static final String VOTE_MIX = "talkAll:25,vote:50,comment:10,userLogged:15";
+
+    private final String scenario = System.getProperty("loadtest.scenario", "closing");
+    private final int duration = Integer.getInteger("loadtest.duration", 60);
+    private final int warmup = Integer.getInteger("loadtest.warmup", 10);
+    private final int concurrency = Integer.getInteger("loadtest.concurrency", 50);
+    private final int nbSpeakers = Integer.getInteger("loadtest.speakers", 500);
+    private final int nbAdmins = Integer.getInteger("loadtest.admins", 10);
+    private final long seed = Long.getLong("loadtest.seed", 42L);
+    private final int port = Integer.getInteger("loadtest.port", 19001);
+    private final String output = System.getProperty("loadtest.output", "target/loadtest");
+    private final String baseline = System.getProperty("loadtest.baseline");
+    private final String mix = System.getProperty("loadtest.mix", "vote".equals(scenario) ? VOTE_MIX : CLOSING_MIX);
+
+    /** Routes tirées au sort, chacune répétée selon son poids */
+    private final List<Route> weightedRoutes = new ArrayList<Route>();
+
+    private final Map<Route, RouteStats> stats = new EnumMap<Route, RouteStats>(Route.class);
+
+    private final List<String> adminCookies = new ArrayList<String>();
+    private final List<String> speakerCookies = new ArrayList<String>();
+    private final List<Long> talkIdBySpeaker = new ArrayList<Long>();
+    private Long creneauId;
+
+    private final AtomicInteger newTalks = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        new LoadTest().run();
+        // Les threads de l'application (Akka) ne s'arrêtent pas d'eux-mêmes
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        for (String entry : mix.split(",")) {
+            String[] keyAndWeight = entry.trim().split(":");
+            Route route = Route.fromKey(keyAndWeight[0]);
+            for (int i = 0; i < Integer.parseInt(keyAndWeight[1]); i++) {
+                weightedRoutes.add(route);
+            }
+            stats.put(route, new RouteStats(route.label));
+        }
+
+        TestServer server = Helpers.testServer(port, Helpers.fakeApplication(configuration()));
+        server.start();
+        try {
+            LoadTestUserService userService = new LoadTestUserService(Play.application());
+            // Remplace CfpUserService auprès de SecureSocial
+            userService.onStart();
+            seed(userService);
+            inject();
+        } finally {
+            server.stop();
+        }
+        report();
+    }
+
+    /**
+     * Base H2 en mémoire, et aucun mail envoyé : les notifications sont écrites dans la table d'envoi
+     * comme en production, mais ni l'envoi ni les récapitulatifs ne tournent, et le serveur SMTP
+     * configuré est remplacé par un hôte local.
+     */
+    private static Map<String, String> configuration() {
+        Map<String, String> configuration = new HashMap<String, String>(Helpers.inMemoryDatabase());
+        configuration.put("mail.outbox.enabled", "false");
+        configuration.put("mail.digest.enabled", "false");
+        configuration.put("smtp.host", "localhost");
+        configuration.put("smtp.user", "");
+        configuration.put("smtp.password", "");
+        return configuration;
+    }
+
+    private void seed(LoadTestUserService userService) throws IOException {
+        System.out.println("Création du jeu de données : " + nbAdmins + " admins, " + nbSpeakers + " speakers");
+        Creneau creneau = new Creneau();
+        creneau.setLibelle("Conférence");
+        creneau.setDureeMinutes(50);
+        creneau.save();
+        creneauId = creneau.getId();
+
+        List<Long> adminIds = new ArrayList<Long>();
+        for (int i = 0; i < nbAdmins; i++) {
+            String name = "admin" + i;
+            adminIds.add(userService.login(name).id);
+            adminCookies.add(sessionCookie(name));
+        }
+        User.updateAdmin(adminIds, true);
+        IdentityResolver.invalidateAll();
+        NotificationSubscriptions.rebuild();
+
+        for (int i = 0; i < nbSpeakers; i++) {
+            String name = "speaker" + i;
+            User speaker = userService.login(name);
+            Talk talk = new Talk();
+            talk.title = "Talk " + i;
+            talk.description = "Talk de test de charge numéro " + i;
+            talk.speaker = speaker;
+            talk.save();
+            talk.getCreneaux().add(creneau);
+            talk.saveManyToManyAssociations("creneaux");
+            speakerCookies.add(sessionCookie(name));
+            talkIdBySpeaker.add(talk.id);
+        }
+
+        if ("vote".equals(scenario)) {
+            VoteStatus.changeVoteStatus(VoteStatusEnum.OPEN);
+        }
+    }
+
+    /**
+     * Cookie de session Play authentifiant l'utilisateur de test de ce nom auprès de SecureSocial.
+     */
+    static String sessionCookie(String name) throws IOException {
+        String data = URLEncoder.encode(SecureSocial.USER_KEY + ":" + name + "\u0000"
+                + SecureSocial.PROVIDER_KEY + ":" + LoadTestUserService.PROVIDER, "UTF-8");
+        String cookieName = Play.application().configuration().getString("session.cookieName");
+        return (cookieName == null ? "PLAY_SESSION" : cookieName) + "=" + Crypto.sign(data) + "-" + data;
+    }
+
+    private void inject() throws InterruptedException {
+        System.out.println("Scénario " + scenario + " (" + mix + ") : " + concurrency + " utilisateurs, "
+                + warmup + "s de chauffe puis " + duration + "s de mesure");
+        final long measureFrom = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmup);
+        final long end = measureFrom + TimeUnit.SECONDS.toNanos(duration);
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            final Random random = new Random(seed + i);
+            executor.execute(new Runnable() {
+                public void run() {
+                    while (System.nanoTime() < end) {
+                        Route route = weightedRoutes.get(random.nextInt(weightedRoutes.size()));
+                        long start = System.nanoTime();
+                        boolean error;
+                        try {
+                            int status = call(route, random);
+                            error = status != HttpURLConnection.HTTP_NOT_MODIFIED && (status < 200 || status >= 300);
+                        } catch (IOException e) {
+                            error = true;
+                        }
+                        if (start >= measureFrom) {
+                            stats.get(route).record(System.nanoTime() - start, error);
+                        }
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(warmup + duration + 60, TimeUnit.SECONDS);
+    }
+
+    private int call(Route route, Random random) throws IOException {
+        int speaker = random.nextInt(speakerCookies.size());
+        String admin = adminCookies.get(random.nextInt(adminCookies.size()));
+        switch (route) {
+            case TALK:
+                return request("GET", "/talk", speakerCookies.get(speaker), null);
+            case TALK_ALL:
+                return request("GET", "/talk/all", admin, null);
+            case POST_TALK:
+                int number = newTalks.incrementAndGet();
+                return request("POST", "/talk", speakerCookies.get(speaker), "{\"title\":\"Nouveau talk " + number
+                        + "\",\"description\":\"Proposé pendant le test de charge\",\"creneaux\":[{\"id\":" + creneauId
+                        + "}],\"tagsname\":\"LOADTEST\"}");
+            case COMMENT:
+                return request("POST", "/talks/" + talkIdBySpeaker.get(speaker) + "/comment",
+                        speakerCookies.get(speaker), "{\"comment\":\"Commentaire du test de charge\"}");
+            case VOTE:
+                Long talkId = talkIdBySpeaker.get(random.nextInt(talkIdBySpeaker.size()));
+                return request("POST", "/talks/" + talkId + "/vote/" + (1 + random.nextInt(5)), admin, null);
+            case USER_LOGGED:
+                return request("GET", "/userLogged", speakerCookies.get(speaker), null);
+            default:
+                throw new IllegalStateException(route.name());
+        }
+    }
+
+    private int request(String method, String path, String cookie, String json) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+        connection.setRequestMethod(method);
+        connection.setRequestProperty("Cookie", cookie);
+        if (json != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+            OutputStream body = connection.getOutputStream();
+            try {
+                body.write(json.getBytes("UTF-8"));
+            } finally {
+                body.close();
+            }
+        }
+        int status = connection.getResponseCode();
+        // Réponse lue entièrement pour que la connexion soit réutilisée
+        InputStream response = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        if (response != null) {
+            try {
+                byte[] buffer = new byte[8192];
+                while (response.read(buffer) != -1) {
+                    // rien à faire du contenu
+                }
+            } finally {
+                response.close();
+            }
+        }
+        return status;
+    }
+
+    private void report() throws IOException {
+        Map<String, Object> results = new LinkedHashMap<String, Object>();
+        results.put("scenario", scenario);
+        results.put("mix", mix);
+        results.put("duration", duration);
+        results.put("concurrency", concurrency);
+        results.put("speakers", nbSpeakers);
+        results.put("admins", nbAdmins);
+        results.put("seed", seed);
+        Map<String, Object> routes = new LinkedHashMap<String, Object>();
+        results.put("routes", routes);
+
+        JsonNode baselineRoutes = null;
+        if (baseline != null) {
+            baselineRoutes = new ObjectMapper().readTree(new File(baseline)).get("routes");
+        }
+
+        System.out.println(String.format("%-28s %8s %9s %9s %9s %9s %8s", "route", "requêtes", "req/s",
+                "p50 ms", "p99 ms", "p999 ms", "erreurs"));
+        for (RouteStats route : stats.values()) {
+            Map<String, Object> result = new LinkedHashMap<String, Object>();
+            result.put("count", route.getCount());
+            result.put("throughput", (double) route.getCount() / duration);
+            result.put("p50", route.getLatencyMillis(50));
+            result.put("p99", route.getLatencyMillis(99));
+            result.put("p999", route.getLatencyMillis(99.9));
+            result.put("errorRate", route.getErrorRate());
+            routes.put(route.route, result);
+
+            System.out.println(String.format("%-28s %8d %9.1f %9.1f %9.1f %9.1f %7.2f%%", route.route,
+                    route.getCount(), (double) route.getCount() / duration, route.getLatencyMillis(50),
+                    route.getLatencyMillis(99), route.getLatencyMillis(99.9), route.getErrorRate() * 100));
+            if (baselineRoutes != null && baselineRoutes.get(route.route) != null) {
+                JsonNode before = baselineRoutes.get(route.route);
+                System.out.println(String.format("%-28s %8s %9.1f %9.1f %9.1f %9.1f %7.2f%%", "  (référence)", "",
+                        before.get("throughput").asDouble(), before.get("p50").asDouble(),
+                        before.get("p99").asDouble(), before.get("p999").asDouble(),
+                        before.get("errorRate").asDouble() * 100));
+            }
+        }
+
+        File directory = new File(output);
+        directory.mkdirs();
+        File file = new File(directory, "loadtest-" + scenario + "-"
+                + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(Json.toJson(results).toString());
+        } finally {
+            writer.close();
+        }
+        System.out.println("Résultats enregistrés dans " + file.getPath());
+    }
+}
@@ -0,0 +1,54 @@
+package loadtest;
+
+import models.User;
+import play.Application;
+import scala.Option;
+import securesocial.core.AuthenticationMethod;
+import securesocial.core.Identity;
+import securesocial.core.OAuth1Info;
+import securesocial.core.OAuth2Info;
+import securesocial.core.PasswordInfo;
+import securesocial.core.SocialUser;
+import securesocial.core.UserId;
+import service.CfpUserService;
+
+/**
+ * Service utilisateur des tests de charge : les identités du provider "loadtest" sont acceptées
+ * sans passer par OAuth, l'utilisateur étant créé à sa première requête.
+ * <p/>
+ * Il suffit d'une session contenant securesocial.user et securesocial.provider (voir {@link LoadTest#sessionCookie}).
+ * Le reste du traitement est celui de {@link CfpUserService}.
+ */
+public class LoadTestUserService extends CfpUserService {
+
+    public static final String PROVIDER = "loadtest";
+
+    public LoadTestUserService(Application application) {
+        super(application);
+    }
+
+    @Override
+    public Identity doFind(UserId userId) {
+        Identity identity = super.doFind(userId);
+        if (identity == null && PROVIDER.equals(userId.providerId())) {
+            doSave(identity(userId.id()));
+            identity = super.doFind(userId);
+        }
+        return identity;
+    }
+
+    /**
+     * Crée (ou retrouve) l'utilisateur de test de ce nom.
+     */
+    public User login(String name) {
+        doFind(new UserId(name, PROVIDER));
+        return User.findByExternalId(name, PROVIDER);
+    }
+
+    private static Identity identity(String name) {
+        return new SocialUser(new UserId(name, PROVIDER), name, name, name + " " + name,
+                Option.apply(name + "@loadtest.breizhcamp.org"), Option.<String>apply(null),
+                new AuthenticationMethod("oauth1"), Option.apply(new OAuth1Info("token", "secret")),
+                Option.<OAuth2Info>apply(null), Option.<PasswordInfo>apply(null));
+    }
+}
@@ -0,0 +1,58 @@
+package loadtest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Mesures d'une route pendant un test de charge : nombre de requêtes, erreurs et latences.
+ */
+public class RouteStats {
+
+    public final String route;
+
+    private final List<Long> latenciesMicros = new ArrayList<Long>();
+
+    private long errors;
+
+    public RouteStats(String route) {
+        this.route = route;
+    }
+
+    /**
+     * @param latencyNanos durée de la requête
+     * @param error        true si la requête a échoué (code HTTP hors 2xx/304, ou exception)
+     */
+    public synchronized void record(long latencyNanos, boolean error) {
+        latenciesMicros.add(latencyNanos / 1000);
+        if (error) {
+            errors++;
+        }
+    }
+
+    public synchronized long getCount() {
+        return latenciesMicros.size();
+    }
+
+    public synchronized long getErrors() {
+        return errors;
+    }
+
+    public synchronized double getErrorRate() {
+        return latenciesMicros.isEmpty() ? 0 : (double) errors / latenciesMicros.size();
+    }
+
+    /**
+     * @param percentile entre 0 et 100, par exemple 99.9
+     * @return la latence en millisecondes
+     */
+    public synchronized double getLatencyMillis(double percentile) {
+        if (latenciesMicros.isEmpty()) {
+            return 0;
+        }
+        List<Long> sorted = new ArrayList<Long>(latenciesMicros);
+        Collections.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1))) / 1000.0;
+    }
+}
@@ -0,0 +1,214 @@
+package models.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MailQueueTest {
+
+    private FakeSmtpServer server;
+
+    private MailQueue mailQueue;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new FakeSmtpServer();
+    }
+
+    @After
+    public void stop() throws IOException {
+        if (mailQueue != null) {
+            // Arrêt immédiat, même si des mails sont encore en attente
+            mailQueue.shutdown(0, TimeUnit.SECONDS);
+        }
+        server.close();
+    }
+
+    @Test
+    public void hundredsOfMailsAreAllDeliveredOverReusedConnections() {
+        MailQueue.Settings settings = settings();
+        settings.workers = 4;
+        settings.capacity = 100;
+        mailQueue = new MailQueue(settings);
+
+        int nbMails = 500;
+        for (int i = 0; i < nbMails; i++) {
+            Assert.assertTrue(mailQueue.enqueue("cfp@breizhcamp.org", "Sujet " + i, "texte", "<p>html</p>",
+                    Arrays.asList("a" + i + "@breizhcamp.org", "b" + i + "@breizhcamp.org")));
+        }
+        Assert.assertTrue(mailQueue.shutdown(60, TimeUnit.SECONDS));
+
+        Assert.assertEquals(nbMails, mailQueue.getSent());
+        Assert.assertEquals(0, mailQueue.getFailed());
+        Assert.assertEquals(nbMails, server.messages.get());
+        Assert.assertEquals(2 * nbMails, server.recipients.get());
+        Assert.assertTrue(server.connections.get() <= settings.workers);
+    }
+
+    @Test
+    public void failedMailsAreRetried() {
+        server.failures.set(3);
+        MailQueue.Settings settings = settings();
+        settings.workers = 1;
+        mailQueue = new MailQueue(settings);
+
+        for (int i = 0; i < 5; i++) {
+            mailQueue.enqueue("cfp@breizhcamp.org", "Sujet " + i, "texte", "<p>html</p>",
+                    Arrays.asList("a" + i + "@breizhcamp.org"));
+        }
+        Assert.assertTrue(mailQueue.shutdown(30, TimeUnit.SECONDS));
+
+        Assert.assertEquals(5, mailQueue.getSent());
+        Assert.assertEquals(0, mailQueue.getFailed());
+        Assert.assertEquals(5, server.messages.get());
+    }
+
+    @Test
+    public void workerSurvivesAMailThatCannotBeBuilt() {
+        MailQueue.Settings settings = settings();
+        settings.workers = 1;
+        mailQueue = new MailQueue(settings);
+
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        // Sans expéditeur, la construction du message lève une NullPointerException
+        Assert.assertTrue(mailQueue.enqueue(null, "Sans expéditeur", "texte", "<p>html</p>",
+                Arrays.asList("a@breizhcamp.org"), null, new MailQueue.Callback() {
+                    public void delivered() {
+                    }
+
+                    public void failed(Exception cause) {
+                        failure.set(cause);
+                    }
+                }));
+        Assert.assertTrue(mailQueue.enqueue("cfp@breizhcamp.org", "Sujet", "texte", "<p>html</p>",
+                Arrays.asList("b@breizhcamp.org")));
+        Assert.assertTrue(mailQueue.shutdown(10, TimeUnit.SECONDS));
+
+        Assert.assertTrue(failure.get() instanceof RuntimeException);
+        Assert.assertEquals(1, mailQueue.getFailed());
+        Assert.assertEquals(1, mailQueue.getSent());
+        Assert.assertEquals(1, server.messages.get());
+    }
+
+    @Test
+    public void sendRateIsLimited() {
+        MailQueue.Settings settings = settings();
+        settings.ratePerMinute = 3;
+        mailQueue = new MailQueue(settings);
+
+        for (int i = 0; i < 5; i++) {
+            mailQueue.enqueue("cfp@breizhcamp.org", "Sujet " + i, "texte", "<p>html</p>",
+                    Arrays.asList("a" + i + "@breizhcamp.org"));
+        }
+        Assert.assertFalse(mailQueue.shutdown(2, TimeUnit.SECONDS));
+        Assert.assertEquals(3, server.messages.get());
+    }
+
+    private MailQueue.Settings settings() {
+        MailQueue.Settings settings = new MailQueue.Settings();
+        settings.host = "localhost";
+        settings.port = server.getPort();
+        settings.backoffMillis = 10;
+        return settings;
+    }
+
+    /**
+     * Serveur SMTP minimal : accepte tous les mails et compte connexions, mails et destinataires.
+     * Les premiers mails peuvent être refusés avec une erreur temporaire (voir failures).
+     */
+    static class FakeSmtpServer implements Runnable {
+
+        final AtomicInteger connections = new AtomicInteger();
+        final AtomicInteger messages = new AtomicInteger();
+        final AtomicInteger recipients = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+
+        private final ServerSocket serverSocket;
+
+        FakeSmtpServer() throws IOException {
+            serverSocket = new ServerSocket(0);
+            Thread thread = new Thread(this, "fake-smtp");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    final Socket socket = serverSocket.accept();
+                    connections.incrementAndGet();
+                    Thread thread = new Thread(new Runnable() {
+                        public void run() {
+                            handle(socket);
+                        }
+                    });
+                    thread.setDaemon(true);
+                    thread.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void handle(Socket socket) {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+                OutputStream out = socket.getOutputStream();
+                reply(out, "220 localhost");
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String command = line.length() < 4 ? line.toUpperCase() : line.substring(0, 4).toUpperCase();
+                    if (command.equals("RCPT")) {
+                        recipients.incrementAndGet();
+                        reply(out, "250 OK");
+                    } else if (command.equals("DATA")) {
+                        reply(out, "354 End data with <CR><LF>.<CR><LF>");
+                        while ((line = in.readLine()) != null && !line.equals(".")) {
+                            // contenu du mail ignoré
+                        }
+                        if (failures.getAndDecrement() > 0) {
+                            reply(out, "451 Try again later");
+                        } else {
+                            messages.incrementAndGet();
+                            reply(out, "250 OK");
+                        }
+                    } else if (command.equals("QUIT")) {
+                        reply(out, "221 Bye");
+                        break;
+                    } else {
+                        // EHLO, HELO, MAIL, RSET, NOOP
+                        reply(out, "250 OK");
+                    }
+                }
+                socket.close();
+            } catch (IOException e) {
+                // connexion fermée par le client
+            }
+        }
+
+        private static void reply(OutputStream out, String line) throws IOException {
+            out.write((line + "\r\n").getBytes("ISO-8859-1"));
+            out.flush();
+        }
+    }
+}
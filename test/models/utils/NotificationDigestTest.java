@@ -0,0 +1,61 @@
+package models.utils;
+
+import static play.test.Helpers.fakeApplication;
+import static play.test.Helpers.inMemoryDatabase;
+import static play.test.Helpers.running;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import models.MailOutbox;
+import models.PendingNotification;
+import models.User;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import play.Configuration;
+
+public class NotificationDigestTest {
+
+    @Test
+    public void digestLongerThanFourThousandCharsIsStored() {
+        Map<String, String> configuration = new HashMap<String, String>(inMemoryDatabase());
+        configuration.put("mail.outbox.enabled", "false");
+        configuration.put("mail.digest.enabled", "false");
+        running(fakeApplication(configuration), new Runnable() {
+            public void run() {
+                User user = new User();
+                user.email = "digest@breizhcamp.org";
+                user.fullname = "Digest";
+                user.save();
+
+                StringBuilder comment = new StringBuilder();
+                while (comment.length() < 140) {
+                    comment.append("commentaire ");
+                }
+                Date twoHoursAgo = new Date(System.currentTimeMillis() - 2 * 3600 * 1000L);
+                for (int i = 0; i < 50; i++) {
+                    PendingNotification notification = new PendingNotification();
+                    notification.user = user;
+                    notification.talkId = (long) (i / 5);
+                    notification.talkTitle = "Talk " + (i / 5);
+                    notification.authorName = "Auteur " + i;
+                    notification.comment = comment.substring(0, 140);
+                    notification.createdAt = twoHoursAgo;
+                    notification.save();
+                }
+
+                new NotificationDigest(Configuration.root()).run();
+
+                List<MailOutbox> mails = MailOutbox.find.all();
+                Assert.assertEquals(1, mails.size());
+                Assert.assertTrue(mails.get(0).message.length() > 4000);
+                Assert.assertEquals("digest@breizhcamp.org", mails.get(0).recipients);
+                Assert.assertEquals(0, PendingNotification.find.findRowCount());
+            }
+        });
+    }
+}
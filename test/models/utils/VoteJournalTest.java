@@ -0,0 +1,47 @@
+package models.utils;
+
+import static play.test.Helpers.fakeApplication;
+import static play.test.Helpers.inMemoryDatabase;
+import static play.test.Helpers.running;
+
+import models.Talk;
+import models.User;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import service.VoteTally;
+
+public class VoteJournalTest {
+
+    @Test
+    public void droppedVoteIsRemovedFromTally() {
+        running(fakeApplication(inMemoryDatabase()), new Runnable() {
+            public void run() {
+                User user = new User();
+                user.email = "votant@breizhcamp.org";
+                user.fullname = "Votant";
+                user.save();
+                // Talk inexistant : l'insertion du vote échoue sur la clé étrangère
+                Talk talk = new Talk();
+                talk.id = 999L;
+
+                Integer oldNote = VoteJournal.record(user, talk, 4);
+                Assert.assertNull(oldNote);
+                VoteTally.record(talk.id, oldNote, 4);
+                Assert.assertEquals(1, VoteTally.snapshot(talk.id).nbVotes);
+
+                // Deux échecs : le vote reste en attente et compté
+                VoteJournal.flush();
+                VoteJournal.flush();
+                Assert.assertEquals(Integer.valueOf(4), VoteJournal.pendingNotes(user.id).get(talk.id));
+                Assert.assertEquals(1, VoteTally.snapshot(talk.id).nbVotes);
+
+                // Troisième échec : le vote est abandonné et retiré du décompte
+                VoteJournal.flush();
+                Assert.assertTrue(VoteJournal.pendingNotes(user.id).isEmpty());
+                Assert.assertEquals(0, VoteTally.snapshot(talk.id).nbVotes);
+            }
+        });
+    }
+}
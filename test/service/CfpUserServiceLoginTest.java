@@ -0,0 +1,90 @@
+package service;
+
+import static play.test.Helpers.fakeApplication;
+import static play.test.Helpers.inMemoryDatabase;
+import static play.test.Helpers.running;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import models.User;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import play.Play;
+import scala.Option;
+import securesocial.core.AuthenticationMethod;
+import securesocial.core.Identity;
+import securesocial.core.OAuth1Info;
+import securesocial.core.OAuth2Info;
+import securesocial.core.PasswordInfo;
+import securesocial.core.SocialUser;
+import securesocial.core.UserId;
+
+/**
+ * Simule un afflux de connexions OAuth (doFind / doSave / doFind) sur une base de plusieurs milliers d'utilisateurs.
+ */
+public class CfpUserServiceLoginTest {
+
+    private static final int NB_USERS = 2000;
+
+    private static final int NB_LOGINS = 600;
+
+    private static final int NB_THREADS = 50;
+
+    @Test
+    public void concurrentLogins() {
+        running(fakeApplication(inMemoryDatabase()), new Runnable() {
+            public void run() {
+                final CfpUserService service = new CfpUserService(Play.application());
+                for (int i = 0; i < NB_USERS; i++) {
+                    service.doSave(identity("user" + i));
+                }
+                Assert.assertEquals(NB_USERS, User.find.findRowCount());
+                Assert.assertEquals(1, User.findAllAdmin().size());
+
+                ExecutorService executor = Executors.newFixedThreadPool(NB_THREADS);
+                List<Future<Void>> futures = new ArrayList<Future<Void>>();
+                for (int i = 0; i < NB_LOGINS; i++) {
+                    // Une connexion sur deux est celle d'un nouvel utilisateur
+                    final String name = i % 2 == 0 ? "user" + (i * 7 % NB_USERS) : "new" + i;
+                    futures.add(executor.submit(new Callable<Void>() {
+                        public Void call() {
+                            Identity identity = identity(name);
+                            service.doFind(identity.id());
+                            service.doSave(identity);
+                            Identity logged = service.doFind(identity.id());
+                            Assert.assertNotNull(logged);
+                            Assert.assertEquals(identity.fullName(), logged.fullName());
+                            return null;
+                        }
+                    }));
+                }
+
+                try {
+                    for (Future<Void> future : futures) {
+                        future.get();
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    executor.shutdown();
+                }
+                Assert.assertEquals(NB_USERS + NB_LOGINS / 2, User.find.findRowCount());
+                Assert.assertEquals(1, User.findAllAdmin().size());
+            }
+        });
+    }
+
+    private static Identity identity(String name) {
+        return new SocialUser(new UserId(name, "twitter"), name, name, name + " " + name,
+                Option.apply(name + "@breizhcamp.org"), Option.<String>apply(null), new AuthenticationMethod("oauth1"),
+                Option.apply(new OAuth1Info("token", "secret")), Option.<OAuth2Info>apply(null),
+                Option.<PasswordInfo>apply(null));
+    }
+}
@@ -0,0 +1,134 @@
+package service;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import play.test.Helpers;
+
+/**
+ * Pilote JDBC de test : délègue à H2 et compte les requêtes SQL réellement exécutées,
+ * y compris celles du lazy loading d'Ebean.
+ * <p/>
+ * Utilisé avec la configuration renvoyée par {@link #inMemoryDatabase()}, dont l'URL est
+ * celle de la base H2 en mémoire préfixée par "jdbc:counting:".
+ */
+public class CountingDriver implements Driver {
+
+    private static final String PREFIX = "jdbc:counting:";
+
+    private static final AtomicInteger executed = new AtomicInteger();
+
+    private final Driver h2 = new org.h2.Driver();
+
+    /**
+     * @return la configuration de {@link Helpers#inMemoryDatabase()} passant par ce pilote
+     */
+    public static Map<String, String> inMemoryDatabase() {
+        Map<String, String> configuration = new HashMap<String, String>(Helpers.inMemoryDatabase());
+        configuration.put("db.default.driver", CountingDriver.class.getName());
+        configuration.put("db.default.url", PREFIX + configuration.get("db.default.url"));
+        return configuration;
+    }
+
+    /**
+     * Remet le compteur à zéro.
+     */
+    public static void reset() {
+        executed.set(0);
+    }
+
+    /**
+     * @return le nombre de requêtes exécutées depuis le dernier {@link #reset()}
+     */
+    public static int count() {
+        return executed.get();
+    }
+
+    /**
+     * Exécute l'action une première fois sans compter, pour charger les caches de référence
+     * (tags, créneaux, champs dynamiques), puis une seconde fois en comptant ses requêtes.
+     *
+     * @return le nombre de requêtes de la seconde exécution
+     */
+    public static int countQueries(Runnable action) {
+        action.run();
+        reset();
+        action.run();
+        return count();
+    }
+
+    public Connection connect(String url, Properties info) throws SQLException {
+        if (!acceptsURL(url)) {
+            return null;
+        }
+        Connection connection = h2.connect(url.substring(PREFIX.length()), info);
+        return connection == null ? null : proxy(Connection.class, connection);
+    }
+
+    public boolean acceptsURL(String url) {
+        return url != null && url.startsWith(PREFIX);
+    }
+
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) throws SQLException {
+        return h2.getPropertyInfo(url.substring(PREFIX.length()), info);
+    }
+
+    public int getMajorVersion() {
+        return h2.getMajorVersion();
+    }
+
+    public int getMinorVersion() {
+        return h2.getMinorVersion();
+    }
+
+    public boolean jdbcCompliant() {
+        return h2.jdbcCompliant();
+    }
+
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    /**
+     * Enveloppe une connexion ou un statement : les statements créés par une connexion sont enveloppés
+     * à leur tour, et chaque appel à une méthode execute* d'un statement est compté.
+     */
+    private static <T> T proxy(final Class<T> type, final T target) {
+        return type.cast(Proxy.newProxyInstance(CountingDriver.class.getClassLoader(), new Class<?>[]{type},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (Statement.class.isAssignableFrom(type) && method.getName().startsWith("execute")) {
+                            executed.incrementAndGet();
+                        }
+                        Object result;
+                        try {
+                            result = method.invoke(target, args);
+                        } catch (InvocationTargetException invocationTargetException) {
+                            throw invocationTargetException.getCause();
+                        }
+                        if (type == Connection.class && result instanceof Statement) {
+                            return wrapStatement(method.getReturnType(), result);
+                        }
+                        return result;
+                    }
+                }));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <S> S wrapStatement(Class<S> type, Object statement) {
+        return proxy(type, (S) statement);
+    }
+}
@@ -0,0 +1,43 @@
+package service;
+
+import models.DynamicField;
+import models.DynamicFieldValue;
+import models.Lien;
+import models.User;
+
+/**
+ * Données communes aux tests des assembleurs.
+ */
+public final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    public static DynamicField createDynamicField(String name) {
+        DynamicField field = new DynamicField();
+        field.setName(name);
+        field.save();
+        return field;
+    }
+
+    /**
+     * Crée un utilisateur avec un lien "blog" et la valeur "@" + fullname pour le champ dynamique donné.
+     */
+    public static User createUser(String email, String fullname, DynamicField field) {
+        User user = new User();
+        user.email = email;
+        user.fullname = fullname;
+        Lien lien = new Lien();
+        lien.label = "blog";
+        lien.url = "http://" + fullname + ".breizhcamp.org";
+        user.getLiens().add(lien);
+        user.save();
+
+        DynamicFieldValue value = new DynamicFieldValue();
+        value.setDynamicField(field);
+        value.setUser(user);
+        value.setValue("@" + fullname);
+        value.save();
+        return user;
+    }
+}
@@ -0,0 +1,125 @@
+package service;
+
+import static play.test.Helpers.fakeApplication;
+import static play.test.Helpers.running;
+
+import java.util.List;
+
+import models.Comment;
+import models.Creneau;
+import models.DynamicField;
+import models.Tag;
+import models.Talk;
+import models.User;
+import models.Vote;
+import models.VoteStatus;
+import models.VoteStatusEnum;
+
+import org.codehaus.jackson.JsonNode;
+import org.junit.Assert;
+import org.junit.Test;
+
+import play.libs.Json;
+
+public class TalkListAssemblerTest {
+
+    @Test
+    public void queryCountDoesNotDependOnNumberOfTalks() {
+        running(fakeApplication(CountingDriver.inMemoryDatabase()), new Runnable() {
+            public void run() {
+                User admin = new User();
+                admin.email = "admin@breizhcamp.org";
+                admin.fullname = "admin";
+                admin.admin = true;
+                admin.save();
+                Creneau creneau = new Creneau();
+                creneau.setLibelle("Conférence");
+                creneau.setDureeMinutes(50);
+                creneau.save();
+                DynamicField twitter = Fixtures.createDynamicField("twitter");
+                VoteStatus.changeVoteStatus(VoteStatusEnum.CLOSED);
+
+                createTalks("small", 3, admin, creneau, twitter);
+                int smallCount = CountingDriver.countQueries(renderAndCheck(admin, 3));
+
+                createTalks("large", 30, admin, creneau, twitter);
+                int largeCount = CountingDriver.countQueries(renderAndCheck(admin, 33));
+
+                Assert.assertEquals(smallCount, largeCount);
+            }
+        });
+    }
+
+    /**
+     * Lit, assemble et sérialise tous les talks comme TalkRestController.all(), puis vérifie le JSON.
+     */
+    private static Runnable renderAndCheck(final User admin, final int expectedSize) {
+        return new Runnable() {
+            public void run() {
+                List<Talk> talks = new TalkListAssembler(admin, true).assemble(Talk.findPage(null, 100, null, null, null, null, null));
+                JsonNode json = Json.toJson(talks);
+
+                Assert.assertEquals(expectedSize, talks.size());
+                for (Talk talk : talks) {
+                    Assert.assertEquals(Double.valueOf(3), talk.moyenne);
+                }
+                for (JsonNode talk : json) {
+                    Assert.assertEquals(3, talk.get("note").asInt());
+                    Assert.assertEquals(1, talk.get("tagsname").asText().split(",").length);
+                    Assert.assertEquals(1, talk.get("creneaux").size());
+
+                    JsonNode speaker = talk.get("speaker");
+                    Assert.assertEquals("@" + speaker.get("fullname").asText(),
+                            speaker.get("dynamicFields").get(0).get("value").asText());
+                    Assert.assertEquals(1, speaker.get("liens").size());
+
+                    JsonNode comments = talk.get("comments");
+                    Assert.assertEquals(1, comments.size());
+                    Assert.assertEquals("admin@breizhcamp.org", comments.get(0).get("author").get("email").asText());
+                    Assert.assertEquals(1, comments.get(0).get("reponses").size());
+                }
+            }
+        };
+    }
+
+    private static void createTalks(String prefix, int count, User admin, Creneau creneau, DynamicField twitter) {
+        for (int i = 0; i < count; i++) {
+            User speaker = Fixtures.createUser(prefix + i + "@breizhcamp.org", prefix + i, twitter);
+
+            Talk talk = new Talk();
+            talk.title = prefix + " talk " + i;
+            talk.description = "description";
+            talk.speaker = speaker;
+            talk.save();
+
+            Tag tag = new Tag();
+            tag.nom = prefix.toUpperCase() + i;
+            tag.talks.add(talk);
+            tag.save();
+            tag.saveManyToManyAssociations("talks");
+
+            creneau.getTalks().add(talk);
+            creneau.saveManyToManyAssociations("talks");
+
+            Comment question = new Comment();
+            question.author = admin;
+            question.talk = talk;
+            question.comment = "question";
+            question.save();
+
+            Comment reponse = new Comment();
+            reponse.author = speaker;
+            reponse.talk = talk;
+            reponse.question = question;
+            reponse.comment = "réponse";
+            reponse.save();
+
+            Vote vote = new Vote();
+            vote.setUser(admin);
+            vote.setTalk(talk);
+            vote.setNote(3);
+            vote.save();
+            VoteTally.record(talk.id, null, 3);
+        }
+    }
+}
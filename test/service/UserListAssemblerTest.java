@@ -0,0 +1,61 @@
+package service;
+
+import static play.test.Helpers.fakeApplication;
+import static play.test.Helpers.running;
+
+import models.DynamicField;
+import models.User;
+
+import org.codehaus.jackson.JsonNode;
+import org.junit.Assert;
+import org.junit.Test;
+
+import play.libs.Json;
+
+public class UserListAssemblerTest {
+
+    @Test
+    public void renderingUsersDoesNotQueryPerUser() {
+        running(fakeApplication(CountingDriver.inMemoryDatabase()), new Runnable() {
+            public void run() {
+                DynamicField twitter = Fixtures.createDynamicField("twitter");
+                DynamicField societe = Fixtures.createDynamicField("societe");
+
+                createUsers("small", 3, twitter);
+                int smallCount = CountingDriver.countQueries(renderAndCheck(3, twitter, societe));
+
+                createUsers("large", 30, twitter);
+                int largeCount = CountingDriver.countQueries(renderAndCheck(33, twitter, societe));
+
+                Assert.assertEquals(smallCount, largeCount);
+            }
+        });
+    }
+
+    /**
+     * Lit, assemble et sérialise une page d'utilisateurs comme UserRestController.get(), puis vérifie le JSON.
+     */
+    private static Runnable renderAndCheck(final int expectedSize, final DynamicField twitter, final DynamicField societe) {
+        return new Runnable() {
+            public void run() {
+                JsonNode users = Json.toJson(new UserListAssembler().assemble(User.findPage(null, 100)));
+                Assert.assertEquals(expectedSize, users.size());
+                for (JsonNode user : users) {
+                    JsonNode fields = user.get("dynamicFields");
+                    Assert.assertEquals(2, fields.size());
+                    Assert.assertEquals(twitter.getId().longValue(), fields.get(0).get("idField").asLong());
+                    Assert.assertEquals("@" + user.get("fullname").asText(), fields.get(0).get("value").asText());
+                    Assert.assertEquals(societe.getId().longValue(), fields.get(1).get("idField").asLong());
+                    Assert.assertTrue(fields.get(1).get("value").isNull());
+                    Assert.assertEquals(1, user.get("liens").size());
+                }
+            }
+        };
+    }
+
+    private static void createUsers(String prefix, int count, DynamicField twitter) {
+        for (int i = 0; i < count; i++) {
+            Fixtures.createUser(prefix + i + "@breizhcamp.org", prefix + i, twitter);
+        }
+    }
+}